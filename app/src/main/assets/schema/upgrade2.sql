@@ -0,0 +1,4 @@
+-- schema version 2
+-- reverse lookups from voices/scales to tracks
+CREATE INDEX IF NOT EXISTS track_voice ON track(voice);
+CREATE INDEX IF NOT EXISTS track_scale ON track(scale);
@@ -8,9 +8,7 @@ import java.util.Arrays;
 
 import android.os.Environment;
 
-import com.wordsaretoys.quencher.data.Note;
-import com.wordsaretoys.quencher.data.Score;
-import com.wordsaretoys.quencher.data.Track;
+import com.wordsaretoys.quencher.data.ScoreSnapshot;
 import com.wordsaretoys.quencher.data.Voice;
 
 /**
@@ -23,17 +21,44 @@ public class Audio {
 	// log tag
 	final String TAG = "Audio";
 
+	// frames over which an edited track's stem fades out
+	static final int TailFade = 256;
+
 	// length of buffer in frames
 	private int bufferLength;
 	
 	// synthesizer pool
 	private ArrayList<Synth> synths;
 	
-	// playback position within each track
-	private int[] notePosition;
+	// batched voice bank, used in place of the pool
+	private VoiceGroup bank;
+	
+	// true if new voices go to the bank
+	private boolean useBank = false;
+	
+	// frames per modulator update for new synths
+	private int controlPeriod = Synth.DefaultControlPeriod;
+	
+	// pinned stem for each track in playback, if any
+	private StemCache.Stem[] stems;
+	
+	// stem frame at start of staging buffer
+	private long stemFrame;
 	
-	// position of last note within each track
-	private int[] noteEnding;
+	// true if stems should fade out over the next buffer
+	private boolean stemsFading;
+	
+	// stems of edited tracks, playing out to a fixed end
+	private ArrayList<StemCache.Tail> tails;
+	
+	// cache of rendered notes, or null if not caching
+	private NoteCache noteCache;
+	
+	// pool of cached note playbacks
+	private ArrayList<NoteCache.Playback> playbacks;
+	
+	// next note to play within each track
+	private int[] noteCursor;
 	
 	// elapsed time during playback
 	private float time;
@@ -45,6 +70,9 @@ public class Audio {
 	// sampling rate in Hz
 	private int sampleRate;
 	
+	// latency the buffers were sized from, in seconds
+	private float latency;
+	
 	// time period covered by staging buffer
 	private float stagePeriod;
 	
@@ -54,14 +82,20 @@ public class Audio {
 	// audio hardware buffer
 	private short[] buffer;
 	
+	// float to 16-bit converter
+	private Dither dither = new Dither();
+	
 	// indicates that score playback is in progress
-	private boolean playing;
+	private volatile boolean playing;
 	
 	// indicates that voices are currently active
-	private boolean calling;
+	private volatile boolean calling;
+	
+	// snapshot of score currently undergoing playback
+	private ScoreSnapshot snapshot;
 	
-	// score currently undergoing playback
-	private Score score;
+	// latest snapshot handed over by the editor
+	private volatile ScoreSnapshot published;
 	
 	// signal dumping stuff
 	private final boolean DUMP = false;
@@ -75,9 +109,9 @@ public class Audio {
 	public Audio(int s) {
 		sampleRate = s; 
 		synths = new ArrayList<Synth>();
-		
-		// insure static waveform data exists
-		Synth.makeWaves();
+		bank = new VoiceGroup(s);
+		playbacks = new ArrayList<NoteCache.Playback>();
+		tails = new ArrayList<StemCache.Tail>();
 
 		// if we're running a signal dump, allocate a buffer
 		if (DUMP) {
@@ -90,6 +124,7 @@ public class Audio {
 	 * @param s audio latency in decimal seconds
 	 */
 	public void setLatency(float l) {
+		latency = l;
 		// buffer length must be even for sample interleaving
 		bufferLength = 2 * ((int)(sampleRate * l) / 2);
 		// create staging and audio buffers
@@ -100,46 +135,158 @@ public class Audio {
 		stagePeriod = 0.5f * (float) bufferLength / (float) sampleRate;
 	}
 	
+	/**
+	 * change the sampling rate
+	 * only possible while nothing is sounding
+	 * 
+	 * @param s sampling rate in Hz
+	 * @return true if the rate was changed
+	 */
+	public boolean setSampleRate(int s) {
+		if (playing || calling || bank.getCount() > 0) {
+			return false;
+		}
+		for (int i = 0, il = synths.size(); i < il; i++) {
+			if (synths.get(i).isActive()) {
+				return false;
+			}
+		}
+		for (int i = 0, il = playbacks.size(); i < il; i++) {
+			if (playbacks.get(i).data != null) {
+				return false;
+			}
+		}
+		sampleRate = s;
+		synths.clear();
+		bank.setSampleRate(s);
+		setLatency(latency);
+		return true;
+	}
+	
+	/**
+	 * select the synthesis engine for new voices
+	 * @param b true to use the voice bank, false for the synth pool
+	 */
+	public void setVoiceBank(boolean b) {
+		useBank = b;
+	}
+	
+	/**
+	 * enable multi-threaded rendering of the voice bank
+	 * @param b true to split dense buffers across threads
+	 */
+	public void setParallel(boolean b) {
+		bank.setParallel(b);
+	}
+	
+	/**
+	 * set the cache used to replay repeated notes
+	 * @param c note cache, or null to synthesize every note
+	 */
+	public void setNoteCache(NoteCache c) {
+		noteCache = c;
+	}
+	
+	/**
+	 * set modulator update period of the synthesizers
+	 * voices already sounding keep their period
+	 * @param p frames between control points (1 = every frame)
+	 */
+	public void setControlPeriod(int p) {
+		controlPeriod = p;
+		bank.setControlPeriod(p);
+	}
+	
 	/**
 	 * play a single note
 	 */
 	public void play(Voice voice, float freq, float loud, float chan) {
-		addSynth(voice, 0, freq, loud, chan);
+		addSynth(voice.getPatch(), 0, freq, loud, chan);
 	}
 	
 	/**
 	 * play a score from a given starting point
-	 * @param score score to play
+	 * @param snap snapshot of score to play
+	 * @param start starting beat index
+	 */
+	public void play(ScoreSnapshot snap, int start) {
+		play(snap, start, null);
+	}
+	
+	/**
+	 * play a score from a given starting point, mixing
+	 * unchanged tracks from their cached stems
+	 * 
+	 * @param snap snapshot of score to play
 	 * @param start starting beat index
+	 * @param cached stems pinned by StemCache.lookup(), or null
 	 */
-	public void play(Score score, int start) {
+	public void play(ScoreSnapshot snap, int start, StemCache.Stem[] cached) {
 		playing = true;
-		this.score = score;
-		notePosition = new int[score.getTrackCount()];
-		for (int i = 0; i < notePosition.length; i++) {
-			Track track = score.getTrack(i);
-			notePosition[i] = (int)((float) start / (float) track.getTiming());
-		}
-		noteEnding = null;
-		time = 60f * (float) start / (float) score.getTempo();
+		snapshot = published = snap;
+		noteCursor = new int[snap.parts.length];
+		for (int i = 0; i < noteCursor.length; i++) {
+			ScoreSnapshot.Part part = snap.parts[i];
+			noteCursor[i] = part.findPosition((int)((float) start / part.timing));
+		}
+		scoreTime = snap.getScoreTime();
+		time = 60f * (float) start / (float) snap.tempo;
+		// pick up stems for tracks that haven't changed
+		dropStems();
+		stemsFading = false;
+		if (cached != null) {
+			for (int i = 0; i < cached.length; i++) {
+				StemCache.Stem s = cached[i];
+				// stems only stand in for the voice bank
+				if (s != null && (!useBank || s.rate != sampleRate)) {
+					s.unpin();
+					cached[i] = null;
+				}
+			}
+			stems = cached;
+			stemFrame = (long)(time * sampleRate);
+		}
 		onPlay();
 		if (DUMP) {
 			sampleData.setLength(0);
 		}
 	}
 	
+	/**
+	 * hand a newer snapshot of the playing score to the
+	 * audio thread; it's picked up at the next buffer
+	 * @param snap snapshot object
+	 */
+	public void publish(ScoreSnapshot snap) {
+		published = snap;
+	}
+	
 	/**
 	 * stop processing the score
 	 * active voices will be allowed to play out
 	 */
 	public void stop() {
+		// stems hold notes that haven't played yet
+		stemsFading = (stems != null);
+		end();
+	}
+	
+	/**
+	 * stop processing the score
+	 * active voices and stems will be allowed to play out
+	 */
+	private void end() {
 		playing = false;
 		onStop();
 		// if no synths were ever active
 		// or none are currently active
-		if (synths.size() == 0 || !calling) {
+		if ((synths.size() == 0 && bank.getCount() == 0 && 
+				playbacks.size() == 0 && stems == null && tails.size() == 0) || !calling) {
 			cleanup();
 		}
+		if (noteCache != null) {
+			noteCache.report();
+		}
 	}
 
 	/**
@@ -166,6 +313,22 @@ public class Audio {
 		return bufferLength;
 	}
 	
+	/**
+	 * get latency the buffers were sized from
+	 * @return latency in decimal seconds
+	 */
+	public float getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * get time period covered by each buffer
+	 * @return period in decimal seconds
+	 */
+	public float getBufferPeriod() {
+		return stagePeriod;
+	}
+	
 	/**
 	 * get elapsed playback time
 	 * @return time in decimal seconds
@@ -186,8 +349,36 @@ public class Audio {
 	
 	/**
 	 * generate the next hardware audio buffer
+	 * converts the float mix to 16-bit with dither
+	 * 
+	 * @return interleaved stereo samples
 	 */
 	public short[] generateNextBuffer() {
+		boolean wasCalling = calling;
+		float[] mix = generateNextFloatBuffer();
+		if (calling) {
+			dither.quantize(mix, buffer);
+			if (dumping) {
+				// only dump one channel
+				for (int i = 0, il = buffer.length; i < il; i += 2) {
+					sampleData.append(buffer[i]).append("\n");
+				}
+			}
+		} else if (wasCalling) {
+			// all voices have flipped to off
+			Arrays.fill(buffer, (short) 0);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * generate the next buffer as float samples
+	 * for sinks that take float, with no conversion pass.
+	 * the array is reused by the next call
+	 * 
+	 * @return interleaved stereo samples in the range (-1..1)
+	 */
+	public float[] generateNextFloatBuffer() {
 		if (DUMP) {
 			// if we're not dumping and voices are active
 			if (!dumping && (playing || calling)) {
@@ -203,9 +394,6 @@ public class Audio {
 		}
 
 		if (playing) {
-			if (noteEnding == null) {
-				readScore();
-			}
 			processScore();
 		}
 		stageActiveVoices();
@@ -213,7 +401,7 @@ public class Audio {
 			time += stagePeriod;
 		}
 
-		return buffer;
+		return stager;
 	}
 	
 	/**
@@ -246,7 +434,18 @@ public class Audio {
 	 * @param loud relative loudness (0..1)
 	 * @param chan channel panning (-1..1)
 	 */
-	private void addSynth(Voice voice, float time, float freq, float loud, float chan) {
+	private void addSynth(VoicePatch patch, float time, float freq, float loud, float chan) {
+		if (useBank) {
+			float[] data = noteCache != null ? 
+					noteCache.request(patch, freq, loud) : null;
+			if (data != null) {
+				addPlayback(data, time, chan);
+			} else {
+				bank.add(patch, time, freq, loud, chan);
+			}
+			return;
+		}
+		
 		Synth synth = null;
 
 		// look for an inactive synth object in the pool
@@ -263,81 +462,194 @@ public class Audio {
 		}
 		
 		// prepare the synth object and make active
-		synth.prepare(voice, time, freq, loud, chan);
+		synth.setControlPeriod(controlPeriod);
+		synth.prepare(patch, time, freq, loud, chan);
+	}
+	
+	/**
+	 * add a cached note to the active list
+	 * @param data mono note samples
+	 * @param time event start time in decimal seconds
+	 * @param chan channel panning (-1..1)
+	 */
+	private void addPlayback(float[] data, float time, float chan) {
+		NoteCache.Playback playback = null;
+		
+		// look for an inactive playback object in the pool
+		for (int i = 0, il = playbacks.size(); i < il; i++) {
+			if (playbacks.get(i).data == null) {
+				playback = playbacks.get(i);
+				break;
+			}
+		}
+		
+		if (playback == null) {
+			playback = new NoteCache.Playback();
+			playbacks.add(playback);
+		}
+		
+		playback.data = data;
+		playback.position = 0;
+		playback.start = time;
+		playback.left = (1 - chan) * 0.5f;
+		playback.right = (1 + chan) * 0.5f;
 	}
 	
 	/**
-	 * scan the score to find the ending note of each track
-	 * need to do this once before playing any score
+	 * switch playback to a newer snapshot of the score
+	 * 
+	 * tracks pick up from the current time. tracks that
+	 * changed or went away play live from here on, but
+	 * notes that began before now are only in their stems,
+	 * so each stem plays on until the next note it holds
+	 * and then fades out
+	 * 
+	 * @param next snapshot object
 	 */
-	private void readScore() {
-		int tl = score.getTrackCount();
-		noteEnding = new int[tl];
-		for (int t = 0; t < tl; t++) {
-			Track track = score.getTrack(t);
-			int lastN = 0;
-			int nl = track.getNoteCount();
-			for (int n = 0; n < nl; n++) {
-				Note note = track.getNoteAt(n);
-				lastN = Math.max(lastN, note.getIndex());
+	private void adopt(ScoreSnapshot next) {
+		ScoreSnapshot prev = snapshot;
+		float was = time;
+		// a tempo change keeps the current beat
+		if (next.tempo != prev.tempo) {
+			time = time * (float) prev.tempo / (float) next.tempo;
+		}
+		int[] cursor = new int[next.parts.length];
+		StemCache.Stem[] kept = stems != null ? 
+				new StemCache.Stem[cursor.length] : null;
+		for (int t = 0; t < cursor.length; t++) {
+			ScoreSnapshot.Part part = next.parts[t];
+			cursor[t] = part.findNote(time, next.tempo);
+			// unchanged tracks keep their stems
+			if (kept != null && next.tempo == prev.tempo) {
+				for (int o = 0; o < prev.parts.length; o++) {
+					if (prev.parts[o] == part) {
+						kept[t] = stems[o];
+						stems[o] = null;
+						break;
+					}
+				}
 			}
-			noteEnding[t] = lastN;
 		}
-		// find the longest timed track
-		float scoreBeats = 0;
-		for (int t = 0; t < tl; t++) {
-			float b = noteEnding[t] * score.getTrack(t).getTiming();
-			scoreBeats = Math.max(scoreBeats, b);
+		if (stems != null) {
+			for (int o = 0; o < stems.length; o++) {
+				StemCache.Stem stem = stems[o];
+				if (stem != null) {
+					// notes from here on are played live
+					ScoreSnapshot.Part part = prev.parts[o];
+					int c = part.findNote(was, prev.tempo);
+					long end = c < part.getNoteCount() ?
+							(long)(part.positionToTime(part.positions[c], prev.tempo) * sampleRate) :
+							stem.length;
+					end = Math.max(end, stemFrame + TailFade);
+					tails.add(new StemCache.Tail(stem, end, TailFade));
+				}
+			}
 		}
-		scoreTime = 60f * scoreBeats / (float) score.getTempo();
+		stems = kept;
+		noteCursor = cursor;
+		snapshot = next;
+		scoreTime = next.getScoreTime();
 	}
 	
 	/**
 	 * copy the next set of notes to the active list
 	 */
 	private void processScore() {
+		// pick up any edits published since the last buffer
+		ScoreSnapshot next = published;
+		if (next != snapshot) {
+			adopt(next);
+		}
+		
 		// we're processing notes that occur between 
 		// current time and next staging time
 		float nextTime = time + stagePeriod;
 		boolean scoreComplete = true;
+		int tempo = snapshot.tempo;
 
 		// for each track in the score
-		for (int t = 0, tl = score.getTrackCount(); t < tl; t++) {
+		for (int t = 0, tl = snapshot.parts.length; t < tl; t++) {
+			ScoreSnapshot.Part part = snapshot.parts[t];
+			int c = noteCursor[t];
+			int n = part.getNoteCount();
 			
 			// if any notes remain in the track
-			if (notePosition[t] <= noteEnding[t]) {
-				Track track = score.getTrack(t);
-				
+			if (c < n) {
 				// look ahead to see if we can activate any notes
-				while (track.positionToTime(notePosition[t]) < nextTime) {
-					Note note = track.getNote(notePosition[t]);
-					if (note != null && !track.isMuted()) {
-						addSynth(track.getVoice(), 
-								note.getTime(), 
-								note.getFrequency(), 
-								note.getVolume(), 
-								note.getPan());
-						onNote(t, note.getIndex());
+				while (c < n && part.positionToTime(part.positions[c], tempo) < nextTime) {
+					if (!part.muted) {
+						// cached tracks are mixed from their stems
+						if (stems == null || stems[t] == null) {
+							addSynth(part.patch, 
+									part.positionToTime(part.positions[c], tempo), 
+									part.freqs[c], 
+									part.volume, 
+									part.pan);
+						}
+						onNote(t, part.positions[c]);
 					}
-					notePosition[t]++;
+					c++;
 				}
+				noteCursor[t] = c;
 				scoreComplete = false;
 			}
 		}
 
 		// if we're all done with the score
 		if (scoreComplete) {
-			stop();
+			end();
 		}
 	}
 
+	/**
+	 * let go of all stems in playback
+	 */
+	private void dropStems() {
+		if (stems != null) {
+			for (int i = 0; i < stems.length; i++) {
+				if (stems[i] != null) {
+					stems[i].unpin();
+				}
+			}
+			stems = null;
+		}
+		for (int i = 0, il = tails.size(); i < il; i++) {
+			tails.get(i).stem.unpin();
+		}
+		tails.clear();
+	}
+	
 	private void cleanup() {
 		// dispose of all synths
 		synths.clear();
+		bank.clear();
+		playbacks.clear();
+		dropStems();
 		// signal the event
 		onVoicesOff();
 	}
 	
+	/**
+	 * soft-clip a staged sample into output range
+	 * @param b staged sample
+	 * @return output sample, within (-1..1)
+	 */
+	static float headroom(float b) {
+		if (b <= -1.25f)
+		{
+		    b = -0.987654f;
+		}
+		else if (b >= 1.25f)
+		{
+		    b = 0.987654f;
+		}
+		else
+		{
+		    b = 1.1f * b - 0.2f * b * b * b;
+		}
+		return b;
+	}
+	
 	/**
 	 * generate samples from the active list
 	 */
@@ -362,35 +674,87 @@ public class Audio {
 			}
 		}
 		
-		// if there's anything to mix
-		if (active) {
-			// headroom mix from staging buffer to audio buffer
-			for (int i = 0, il = buffer.length; i < il; i++) {
-				float b = stager[i];
-				if (b <= -1.25f)
-				{
-				    b = -0.987654f;
+		// generate all banked voices in one pass
+		if (bank.getCount() > 0) {
+			if (!active) {
+				Arrays.fill(stager, 0);
+			}
+			bank.sample(stager, time);
+			active = true;
+		}
+		
+		// mix cached notes
+		for (int i = playbacks.size() - 1; i >= 0; i--) {
+			NoteCache.Playback p = playbacks.get(i);
+			if (p.data != null) {
+				if (!active) {
+					Arrays.fill(stager, 0);
 				}
-				else if (b >= 1.25f)
-				{
-				    b = 0.987654f;
+				// same start offset as the voice bank
+				float dt = p.start - time;
+				int frame = dt > 0 ? (int)(sampleRate * dt) / 2 : 0;
+				if (!p.mix(stager, frame)) {
+					p.data = null;
 				}
-				else
-				{
-				    b = 1.1f * b - 0.2f * b * b * b;
+				active = true;
+			}
+		}
+		
+		// mix stems of cached tracks
+		if (stems != null || tails.size() > 0) {
+			int frames = stager.length / 2;
+			long end = stemsFading ? stemFrame + frames : Long.MAX_VALUE;
+			int fade = stemsFading ? frames : 0;
+			boolean stemming = false;
+			if (stems != null) {
+				for (int i = 0; i < stems.length; i++) {
+					StemCache.Stem s = stems[i];
+					if (s != null) {
+						if (!active) {
+							Arrays.fill(stager, 0);
+							active = true;
+						}
+						if (s.mix(stager, stemFrame, end, fade)) {
+							stemming = true;
+						} else {
+							s.unpin();
+							stems[i] = null;
+						}
+					}
 				}
-				buffer[i] = (short)(32767 * b);
-				// only dump one channel
-				if (dumping && ((i & 1) == 0)) {
-					sampleData.append(buffer[i]).append("\n");
+			}
+			for (int i = tails.size() - 1; i >= 0; i--) {
+				StemCache.Tail tail = tails.get(i);
+				if (!active) {
+					Arrays.fill(stager, 0);
+					active = true;
+				}
+				// whichever ends first sets the fade
+				boolean own = tail.end <= end;
+				if (!tail.stem.mix(stager, stemFrame, 
+						own ? tail.end : end, own ? tail.fade : fade)) {
+					tail.stem.unpin();
+					tails.remove(i);
 				}
 			}
+			stemFrame += frames;
+			if (!stemming) {
+				stems = null;
+			}
+		}
+		
+		// if there's anything to mix
+		if (active) {
+			// headroom mix in place
+			for (int i = 0, il = stager.length; i < il; i++) {
+				stager[i] = headroom(stager[i]);
+			}
 		}
 		
 		// if all voices have flipped to off
 		if (calling && !active) {
 			// zero out the buffer
-			Arrays.fill(buffer, (short) 0);
+			Arrays.fill(stager, 0);
 			// if we're no longer playing a score
 			if (!playing) {
 				cleanup();
@@ -0,0 +1,245 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * low-latency output channel for auditioning notes
+ *
+ * taps play through their own small audio track and
+ * thread, so they sound within a few milliseconds
+ * instead of waiting out the score's buffer. the
+ * channel holds a limited number of voices, and only
+ * runs while one of them is sounding
+ */
+class Audition implements Runnable {
+
+	static final String TAG = "Audition";
+
+	// time period covered by each buffer, in seconds
+	static final float BufferPeriod = 0.004f;
+
+	// most voices sounding at once
+	static final int MaxVoices = 8;
+
+	// pump thread
+	private final Thread thread;
+
+	// note requests waiting for the pump
+	private final ConcurrentLinkedQueue<Runnable> requests;
+
+	// true while the pump is waiting for requests
+	private volatile boolean parked;
+
+	// true once the audio track is up
+	private volatile boolean ready;
+
+	// sampling rate in Hz
+	private int sampleRate;
+
+	// synthesizers for auditioned notes
+	// the synth pool is used unless the voice bank is on
+	private VoiceBank bank;
+	private Synth[] synths;
+	private boolean useBank;
+
+	// frames per modulator update (1 = every frame)
+	private int controlPeriod = Synth.DefaultControlPeriod;
+
+	// staging and hardware buffers
+	private float[] stager;
+	private short[] buffer;
+
+	// float to 16-bit converter
+	private Dither dither = new Dither();
+
+	// time period covered by each buffer, to the frame
+	private float period;
+
+	// time at start of next buffer
+	private float time;
+
+	/**
+	 * ctor
+	 * @param s sampling rate in Hz
+	 */
+	public Audition(int s) {
+		sampleRate = s;
+		bank = new VoiceBank(s);
+		synths = new Synth[MaxVoices];
+		for (int i = 0; i < MaxVoices; i++) {
+			synths[i] = new Synth(s);
+		}
+		int frames = (int)(s * BufferPeriod);
+		stager = new float[2 * frames];
+		buffer = new short[2 * frames];
+		period = (float) frames / (float) s;
+		requests = new ConcurrentLinkedQueue<Runnable>();
+		thread = new Thread(this, "audition pump");
+		thread.start();
+	}
+
+	/**
+	 * play a single note
+	 * @param patch compiled voice
+	 * @param freq tone frequency in Hz
+	 * @param loud loudness (0..1)
+	 * @param chan channel pan (-1..1)
+	 * @return false if the channel isn't available
+	 */
+	public boolean play(final VoicePatch patch, final float freq,
+			final float loud, final float chan) {
+		if (!ready) {
+			return false;
+		}
+		post(new Runnable() {
+			public void run() {
+				// past the voice limit, taps are dropped
+				if (useBank) {
+					if (bank.getCount() < MaxVoices) {
+						bank.add(patch, time, freq, loud, chan);
+					}
+					return;
+				}
+				for (int i = 0; i < MaxVoices; i++) {
+					if (!synths[i].isActive()) {
+						synths[i].setControlPeriod(controlPeriod);
+						synths[i].prepare(patch, time, freq, loud, chan);
+						break;
+					}
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * select the synthesis engine for new taps
+	 * @param b true to use the voice bank, false for the synth pool
+	 */
+	public void setVoiceBank(final boolean b) {
+		post(new Runnable() {
+			public void run() {
+				useBank = b;
+			}
+		});
+	}
+
+	/**
+	 * set modulator update period of the synthesizers
+	 * @param p frames between control points (1 = every frame)
+	 */
+	public void setControlPeriod(final int p) {
+		post(new Runnable() {
+			public void run() {
+				controlPeriod = p;
+				bank.setControlPeriod(p);
+			}
+		});
+	}
+
+	/**
+	 * check whether any voice is still sounding
+	 * @return true if a synth or banked voice is active
+	 */
+	private boolean isSounding() {
+		if (bank.getCount() > 0) {
+			return true;
+		}
+		for (int i = 0; i < MaxVoices; i++) {
+			if (synths[i].isActive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * queue a request to run on the pump thread
+	 * @param request request to run before the next buffer
+	 */
+	private void post(Runnable request) {
+		requests.add(request);
+		if (parked) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		AudioTrack track = null;
+
+		// smallest track the hardware allows
+		try {
+			int length = AudioTrack.getMinBufferSize(
+					sampleRate,
+					AudioFormat.CHANNEL_OUT_STEREO,
+					AudioFormat.ENCODING_PCM_16BIT);
+			track = new AudioTrack(
+					AudioManager.STREAM_MUSIC,
+					sampleRate,
+					AudioFormat.CHANNEL_OUT_STEREO,
+					AudioFormat.ENCODING_PCM_16BIT,
+					Math.max(length, buffer.length * 2), // length in bytes
+					AudioTrack.MODE_STREAM);
+
+			if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+				throw new RuntimeException("Couldn't initialize AudioTrack object");
+			}
+
+			track.setStereoVolume(1, 1);
+
+		} catch (Exception e) {
+			// notes fall back to the score channel
+			Log.w(TAG, "no audition channel", e);
+			if (track != null) {
+				track.release();
+			}
+			return;
+		}
+		ready = true;
+
+		while (true) {
+
+			// apply any note requests
+			Runnable request;
+			while ((request = requests.poll()) != null) {
+				request.run();
+			}
+
+			// nothing sounding; let the track play out and wait
+			if (!isSounding()) {
+				track.stop();
+				parked = true;
+				while (requests.isEmpty()) {
+					LockSupport.park(this);
+				}
+				parked = false;
+				track.play();
+				continue;
+			}
+
+			Arrays.fill(stager, 0);
+			for (int i = 0; i < MaxVoices; i++) {
+				if (synths[i].isActive()) {
+					synths[i].sample(stager, 0, stager.length);
+				}
+			}
+			bank.sample(stager, time);
+			time += period;
+			for (int i = 0, il = stager.length; i < il; i++) {
+				stager[i] = Audio.headroom(stager[i]);
+			}
+			dither.quantize(stager, buffer);
+			track.write(buffer, 0, buffer.length);
+		}
+	}
+}
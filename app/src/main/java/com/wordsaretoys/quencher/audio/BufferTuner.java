@@ -0,0 +1,121 @@
+package com.wordsaretoys.quencher.audio;
+
+import android.util.Log;
+
+/**
+ * adapts audio latency to what the device can sustain
+ *
+ * each buffer is timed against its playback period.
+ * an underrun or a heavy load grows the buffer at once;
+ * it shrinks only after a long run of light loads, and
+ * never back down to a length that has underrun
+ *
+ * used only on the audio pump thread, apart from the
+ * underrun count
+ */
+class BufferTuner {
+
+	static final String TAG = "BufferTuner";
+
+	// latency bounds in seconds
+	static final float MinLatency = 0.002f;
+	static final float MaxLatency = 0.25f;
+
+	// load (fraction of buffer period) above which the buffer grows
+	static final float HighLoad = 0.7f;
+
+	// load below which the buffer may shrink
+	static final float LowLoad = 0.3f;
+
+	// time spent under low load before shrinking, in seconds
+	static final float SettleTime = 4;
+
+	// latency scaling on growth and shrinkage
+	static final float GrowFactor = 2f;
+	static final float ShrinkFactor = 0.75f;
+
+	// latency from preferences, in seconds
+	private float preferred;
+
+	// current latency in seconds
+	private float latency;
+
+	// lowest latency known to be safe, in seconds
+	private float floor;
+
+	// time spent under low load since the last change
+	private float settled;
+
+	// total underruns detected
+	private volatile int underruns;
+
+	/**
+	 * set the starting latency
+	 * a tuned latency is kept unless the preference changed
+	 *
+	 * @param l preferred latency in seconds
+	 * @return latency to use, in seconds
+	 */
+	float start(float l) {
+		if (l != preferred) {
+			preferred = l;
+			latency = Math.max(MinLatency, Math.min(MaxLatency, l));
+			floor = MinLatency;
+		}
+		settled = 0;
+		return latency;
+	}
+
+	/**
+	 * record the timing of a buffer and adjust the latency
+	 *
+	 * @param nanos time spent generating the buffer
+	 * @param period playback period of the buffer in seconds
+	 * @param starved true if the track ran dry before the buffer
+	 * @return latency to use, in seconds
+	 */
+	float update(long nanos, float period, boolean starved) {
+		float load = (float) nanos * 1e-9f / period;
+		if (starved) {
+			underruns++;
+			// don't come back down to a length that failed
+			floor = Math.min(MaxLatency, latency * GrowFactor);
+		}
+		if (starved || load > HighLoad) {
+			return change(latency * GrowFactor);
+		}
+		if (load < LowLoad) {
+			settled += period;
+			if (settled >= SettleTime) {
+				return change(latency * ShrinkFactor);
+			}
+		} else {
+			settled = 0;
+		}
+		return latency;
+	}
+
+	/**
+	 * get number of underruns detected
+	 * @return underrun count
+	 */
+	int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * move to a new latency within bounds
+	 * @param l requested latency in seconds
+	 * @return latency to use, in seconds
+	 */
+	private float change(float l) {
+		settled = 0;
+		l = Math.max(floor, Math.min(MaxLatency, l));
+		if (l != latency) {
+			latency = l;
+			Log.i(TAG, "latency now " + (int)(latency * 1000) +
+					" ms after " + underruns + " underruns");
+		}
+		return latency;
+	}
+}
@@ -0,0 +1,56 @@
+package com.wordsaretoys.quencher.audio;
+
+/**
+ * converts float samples to 16-bit with TPDF dither
+ *
+ * each sample gets triangular noise one LSB wide on
+ * either side before rounding, which turns the
+ * truncation distortion of quiet passages and voice
+ * tails into a flat noise floor. the noise comes from
+ * a xorshift generator, two uniform values per draw
+ *
+ * not thread safe; give each output thread its own
+ */
+class Dither {
+
+	// full scale of a 16-bit sample
+	static final float FullScale = 32767f;
+
+	// scales a 16-bit random value to one LSB
+	static final float NoiseScale = 1f / 65536f;
+
+	// generator state, never zero
+	private int seed;
+
+	/**
+	 * ctor
+	 */
+	public Dither() {
+		seed = (int) System.nanoTime() | 1;
+	}
+
+	/**
+	 * convert a buffer of float samples
+	 * @param src samples in the range (-1..1)
+	 * @param dst 16-bit samples, at least as long as src
+	 */
+	public void quantize(float[] src, short[] dst) {
+		int x = seed;
+		for (int i = 0, il = src.length; i < il; i++) {
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			// difference of two uniform values is triangular
+			float noise = (float)((x & 0xFFFF) - (x >>> 16)) * NoiseScale;
+			// offset keeps the cast rounding toward negative infinity
+			int s = (int)(src[i] * FullScale + noise + 32768.5f) - 32768;
+			if (s > 32767) {
+				s = 32767;
+			} else if (s < -32768) {
+				s = -32768;
+			}
+			dst[i] = (short) s;
+		}
+		seed = x;
+	}
+}
@@ -1,25 +1,32 @@
 package com.wordsaretoys.quencher.audio;
 
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Message;
+import android.os.Process;
 import android.preference.PreferenceManager;
 
 import com.wordsaretoys.quencher.R;
-import com.wordsaretoys.quencher.common.Needle;
 import com.wordsaretoys.quencher.common.Notifier;
+import com.wordsaretoys.quencher.common.StartupTrace;
 import com.wordsaretoys.quencher.data.Scale;
 import com.wordsaretoys.quencher.data.Score;
+import com.wordsaretoys.quencher.data.ScoreSnapshot;
 import com.wordsaretoys.quencher.data.Voice;
 
 /**
  * streams output of audio generator to audio tracks
  */
 
-public enum Engine {
+public enum Engine implements Notifier.NotificationListener {
 	
 	// singleton instance
 	INSTANCE;
@@ -27,63 +34,217 @@ public enum Engine {
 	// log tag
 	final String TAG = "Engine";
 
+	// time to wait for a pump thread to exit, in ms
+	static final long StopTimeout = 1000;
+
 	// application context
 	Context context;
 	
 	// sample rate
 	int sampleRate;
 	
-	// notification interval
-	float interval;
+	// time (System.nanoTime) at which the score's time zero
+	// was or would have been heard; the playhead is read from
+	// it without locks or messages
+	volatile long playheadBase;
 	
-	// time marker
-	float lastTime;
-	
-	// audio generator object
-	Audio audio;
+	// audio generator object, created on first playback
+	volatile Audio audio;
 
 	// audio pump thread object
 	AudioPump audioPump;
 	
+	// play/stop requests waiting for the pump
+	ConcurrentLinkedQueue<Runnable> requests = new ConcurrentLinkedQueue<Runnable>();
+	
+	// true from a score play request until the pump applies it
+	volatile boolean starting;
+	
+	// score last played, touched only on the UI thread
+	Score score;
+	
+	// latest snapshot of that score handed to the pump
+	volatile ScoreSnapshot latest;
+	
+	// cache of rendered tracks
+	StemCache stemCache;
+	
+	// cache of rendered notes
+	NoteCache noteCache;
+	
+	// runtime latency adjustment
+	BufferTuner tuner;
+	
+	// low-latency channel for single notes
+	Audition audition;
+	
+	/**
+	 * audio/synth settings, read from preferences
+	 */
+	static class Config {
+		// native output rate in Hz
+		int sampleRate;
+		// preferred latency in decimal seconds
+		float latency;
+		// true if buffer length adapts to load
+		boolean adaptive;
+		// true to use the voice bank
+		boolean voiceBank;
+		// true to render the voice bank on several threads
+		boolean parallel;
+		// voice bank control period in frames
+		int controlPeriod;
+		// cache budgets in megabytes
+		int stemMb, noteMb;
+	}
+	
 	/**
 	 * audio pump class
+	 * 
+	 * the pump is paced only by the blocking write to the
+	 * audio track. play and stop requests are posted to a
+	 * queue and applied on the pump thread between buffers,
+	 * so generating a buffer never enters a monitor. when
+	 * nothing is sounding, the pump stops the track and
+	 * parks until the next request arrives
 	 */
-	class AudioPump extends Needle {
+	class AudioPump implements Runnable {
 
-		public AudioPump() {
-			super("audio pump", 1);
+		// pump thread
+		final Thread thread;
+		
+		// false once the pump has been told to quit
+		volatile boolean running = true;
+		
+		// true while the pump is waiting for requests
+		volatile boolean parked;
+		
+		// streaming audio track
+		AudioTrack track;
+		
+		// settings in use
+		Config config;
+		
+		// settings to start with, or null if they couldn't be read
+		final Config initial;
+		
+		// true if buffer length adapts to load
+		boolean adaptive;
+		
+		// frames written since the track was started
+		int written;
+		
+		public AudioPump(Config initial) {
+			this.initial = initial;
+			thread = new Thread(this, "audio pump");
 		}
 
+		/**
+		 * start the pump thread
+		 */
+		public void start() {
+			thread.start();
+		}
+		
+		/**
+		 * stop the pump thread and wait for it to exit
+		 */
+		public void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+			try {
+				thread.join(StopTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * wake the pump if it's waiting for requests
+		 */
+		public void wake() {
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+		
+		/**
+		 * publish the audible playback position
+		 * the frames still queued in the track come first
+		 */
+		void anchor() {
+			int queued = Math.max(0, written - track.getPlaybackHeadPosition());
+			float heard = audio.getElapsedTime() - (float) queued / (float) sampleRate;
+			playheadBase = System.nanoTime() - (long)(heard * 1e9f);
+		}
+		
+		/**
+		 * swap in a new set of settings between buffers
+		 * @param c settings object
+		 */
+		void apply(Config c) {
+			config = c;
+			adaptive = c.adaptive;
+			audio.setLatency(adaptive ? tuner.start(c.latency) : c.latency);
+			audio.setVoiceBank(c.voiceBank);
+			audio.setParallel(c.parallel);
+			audio.setControlPeriod(c.controlPeriod);
+			audition.setControlPeriod(c.controlPeriod);
+			audition.setVoiceBank(c.voiceBank);
+			if (track == null || !switchRate()) {
+				configureCaches();
+			}
+		}
+		
+		/**
+		 * move to the configured sample rate, if it's changed
+		 * voices can't move between rates, so this waits until
+		 * nothing is sounding
+		 * 
+		 * @return true if the rate was changed
+		 */
+		boolean switchRate() {
+			if (config.sampleRate == sampleRate || 
+					!audio.setSampleRate(config.sampleRate)) {
+				return false;
+			}
+			sampleRate = config.sampleRate;
+			track.setPlaybackRate(sampleRate);
+			configureCaches();
+			return true;
+		}
+		
+		/**
+		 * apply current settings to the caches
+		 */
+		void configureCaches() {
+			// stems are rendered by the voice bank, so they need it on
+			stemCache.configure(sampleRate, config.controlPeriod, 
+					config.voiceBank ? config.stemMb : 0);
+			noteCache.configure(sampleRate, config.controlPeriod, config.noteMb);
+			audio.setNoteCache(config.noteMb > 0 ? noteCache : null);
+		}
+		
 		@Override
 		public void run() {
-			AudioTrack track = null;
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 			
-			// load any audio/synth preferences
-			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-			Resources res = context.getResources();
-			Scale.loadTuning(prefs, res);
-			
-			// create audio buffers based on preferred latency
-			try {
-				String s = prefs.getString(
-						"pref_audio_latency", 
-						res.getString(R.string.prefsAudioLatencyDefault));
-				float latency = Float.valueOf(s) * 0.001f;
-				audio.setLatency(latency);
-			} catch (Exception e) {
-				e.printStackTrace();
+			// apply audio/synth preferences read by the starting thread
+			if (initial == null) {
 				Notifier.INSTANCE.send(Notifier.AudioInitFailed);
 				return;
 			}
+			apply(initial);
 			
 			// create and start streaming audio track
+			// it has room for the longest buffer, so latency can change live
 			try {
 				track = new AudioTrack(
 						AudioManager.STREAM_MUSIC,
 						sampleRate,
 						AudioFormat.CHANNEL_OUT_STEREO,
 						AudioFormat.ENCODING_PCM_16BIT,
-						audio.getBufferLength() * 2, // length in bytes
+						4 * (int)(sampleRate * BufferTuner.MaxLatency), // length in bytes
 						AudioTrack.MODE_STREAM);
 				
 				if (track.getState() != AudioTrack.STATE_INITIALIZED) {
@@ -96,39 +257,126 @@ public enum Engine {
 			} catch (Exception e) {
 				e.printStackTrace();
 				Notifier.INSTANCE.send(Notifier.AudioInitFailed);
+				if (track != null) {
+					track.release();
+				}
 				return;
 			}
 			
-			while (inPump()) {
-				
-				short[] buffer = null;
+			written = 0;
+			// true once there's something in the track to run out
+			boolean primed = false;
+			// head position seen after the last write
+			int lastHead = 0;
+			
+			while (running) {
 				
-				// buffer generation synchronized to play/stop methods
-				synchronized(INSTANCE) {
-					buffer = audio.generateNextBuffer();
+				// apply any play/stop requests
+				Runnable request;
+				while ((request = requests.poll()) != null) {
+					request.run();
 				}
+				
+				// track has run dry if it's played all we've written
+				boolean starved = primed && written - track.getPlaybackHeadPosition() <= 0;
+				float period = audio.getBufferPeriod();
+				long t = System.nanoTime();
+				short[] buffer = audio.generateNextBuffer();
+				long nanos = System.nanoTime() - t;
+				
 				// always pass the audio buffer to the track
 				track.write(buffer, 0, buffer.length);
-				// send out periodic notifications if in playback
+				written += buffer.length / 2;
+				primed = true;
+				
+				// the track has room to spare, so hold it to about one
+				// buffer ahead of the playback head; latency then follows
+				// the buffer length. a new request cuts the wait short.
+				// until the head moves the track may be waiting to fill,
+				// so the blocking write paces the pump instead
+				int head = track.getPlaybackHeadPosition();
+				boolean advancing = (head != lastHead);
+				lastHead = head;
+				int excess = written - head - buffer.length / 2;
+				if (advancing && excess > 0) {
+					// the head moves in steps, so wait a buffer at most
+					// and measure again rather than trust one reading
+					excess = Math.min(excess, buffer.length / 2);
+					parked = true;
+					if (requests.isEmpty()) {
+						LockSupport.parkNanos(this, 1000000000L * excess / sampleRate);
+					}
+					parked = false;
+				}
+				
 				if (audio.isPlaying() || audio.isCalling()) {
-					if (audio.getElapsedTime() - lastTime >= interval) {
-						int ms = (int)(audio.getElapsedTime() * 1000);
-						Notifier.INSTANCE.send(Notifier.AudioMarker, ms);
-						lastTime = audio.getElapsedTime();
+					// resize the next buffer to fit the load
+					if (adaptive) {
+						float l = tuner.update(nanos, period, starved);
+						if (l != audio.getLatency()) {
+							audio.setLatency(l);
+						}
+					}
+					if (audio.isPlaying()) {
+						anchor();
+					} else {
+						// session over; don't extrapolate from it
+						playheadBase = 0;
 					}
+				} else if (requests.isEmpty()) {
+					// nothing sounding; let the track play out and wait
+					playheadBase = 0;
+					track.stop();
+					switchRate();
+					parked = true;
+					while (running && requests.isEmpty()) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					track.play();
+					// the restarted track has to fill again before
+					// its head moves, so don't wait on it until then
+					written = track.getPlaybackHeadPosition();
+					lastHead = written;
+					primed = false;
 				}
 			}
+			
+			track.stop();
+			track.release();
 		}
 		
 	}
 	
 	/**
-	 * ctor, creates audio object
+	 * create the engine instance
+	 * 
+	 * audio objects and the pump aren't created until
+	 * something is played, keeping them off the startup path
+	 * 
+	 * @param context application/activity context
+	 */
+	public void onCreate(Context context) {
+		this.context = context;
+		Notifier.INSTANCE.register(this, Events);
+	}
+	
+	/**
+	 * creates the audio objects and starts the pump, once
 	 */
-	private Engine() {
-		// create audio generation object
+	private void startUp() {
+		if (audio != null) {
+			return;
+		}
+		StartupTrace trace = StartupTrace.INSTANCE;
+		long t = trace.begin("engine");
 		// operate at native sampling rate for max performance
 		sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		stemCache = new StemCache(new File(context.getCacheDir(), "stems"));
+		noteCache = new NoteCache();
+		tuner = new BufferTuner();
+		audition = new Audition(sampleRate);
+		// create audio generation object
 		audio = new Audio(sampleRate) {
 			protected void onPlay() {
 				Notifier.INSTANCE.send(Notifier.AudioPlaying);
@@ -140,42 +388,131 @@ public enum Engine {
 				Notifier.INSTANCE.send(Notifier.AudioOff);
 			}
 		};
-	}
-	
-	/**
-	 * create the engine instance
-	 * @param context application/activity context
-	 */
-	public void onCreate(Context context) {
-		this.context = context;
 		restart();
+		trace.end("engine", t);
 	}
 	
 	/**
 	 * creates a new audio pump
+	 * if the engine hasn't started, settings apply when it does
 	 */
 	public synchronized void restart() {
+		if (audio == null) {
+			return;
+		}
 		// tear down old audio pump, if any
 		if (audioPump != null) {
 			audioPump.stop();
 			audioPump = null;
 		}
 		// create audio pump with new settings
-		audioPump = new AudioPump();
+		Config c;
+		try {
+			c = readConfig();
+		} catch (Exception e) {
+			e.printStackTrace();
+			c = null;
+		}
+		audioPump = new AudioPump(c);
 		// and get it running
 		audioPump.start();
-		audioPump.resume();
+	}
+	
+	/**
+	 * apply changed audio/synth settings to the running engine
+	 * 
+	 * settings are swapped in on the pump thread between
+	 * buffers, so sound in progress carries on without a gap.
+	 * a tuning change reaches the playing score as an edit
+	 * if the engine hasn't started, settings apply when it does
+	 */
+	public synchronized void reconfigure() {
+		if (audio == null) {
+			return;
+		}
+		final Config c;
+		try {
+			c = readConfig();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		// the cached snapshot holds frequencies from the old tuning,
+		// so rebuild it; retuned parts go out as edits would
+		if (score != null && isPlaying()) {
+			latest = score.getSnapshot(true);
+			audio.publish(latest);
+		}
+		post(new Runnable() {
+			public void run() {
+				audioPump.apply(c);
+			}
+		});
+	}
+	
+	/**
+	 * read audio/synth settings from preferences
+	 * 
+	 * tuning is loaded into Scale here rather than on the pump,
+	 * as snapshots are built on the calling (UI) thread
+	 * @return settings object
+	 */
+	private Config readConfig() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		Resources res = context.getResources();
+		Scale.loadTuning(prefs, res);
+		Config c = new Config();
+		c.sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		String s = prefs.getString(
+				"pref_audio_latency", 
+				res.getString(R.string.prefsAudioLatencyDefault));
+		c.latency = Float.valueOf(s) * 0.001f;
+		c.adaptive = prefs.getBoolean("pref_audio_adaptive_latency", true);
+		c.voiceBank = prefs.getBoolean("pref_audio_voice_bank", false);
+		c.parallel = prefs.getBoolean("pref_audio_parallel", false);
+		c.controlPeriod = Integer.valueOf(prefs.getString(
+				"pref_audio_control_period",
+				res.getString(R.string.prefsAudioControlPeriodDefault)));
+		c.stemMb = Integer.valueOf(prefs.getString(
+				"pref_audio_stem_cache",
+				res.getString(R.string.prefsAudioStemCacheDefault)));
+		c.noteMb = Integer.valueOf(prefs.getString(
+				"pref_audio_note_cache",
+				res.getString(R.string.prefsAudioNoteCacheDefault)));
+		return c;
+	}
+	
+	/**
+	 * queue a request to run on the pump thread
+	 * @param request request to run before the next buffer
+	 */
+	private void post(Runnable request) {
+		requests.add(request);
+		audioPump.wake();
 	}
 	
 	/**
 	 * play a single tone
+	 * 
+	 * tones go out on the audition channel, if it's up,
+	 * so they aren't held back by the score's latency
+	 * 
 	 * @param voice voice object to synthesize
 	 * @param freq tone frequency in Hz
 	 * @param loud loudness (0..1)
 	 * @param chan channel pan (-1..1)
 	 */
-	public synchronized void play(Voice voice, float freq, float loud, float chan) {
-		audio.play(voice, freq, loud, chan);
+	public synchronized void play(final Voice voice, final float freq, 
+			final float loud, final float chan) {
+		startUp();
+		if (audition.play(voice.getPatch(), freq, loud, chan)) {
+			return;
+		}
+		post(new Runnable() {
+			public void run() {
+				audio.play(voice, freq, loud, chan);
+			}
+		});
 	}	
 	
 	/**
@@ -183,11 +520,41 @@ public enum Engine {
 	 * @param score score to play
 	 * @param start starting beat index
 	 */
-	public synchronized void play(Score score, int start) {
-		audio.play(score, start);
-		lastTime = audio.getElapsedTime();
-		interval = (1f / 8f) * 60f / (float) score.getTempo();
-		Notifier.INSTANCE.send(Notifier.AudioPlaying);
+	public synchronized void play(Score score, final int start) {
+		startUp();
+		starting = true;
+		this.score = score;
+		final ScoreSnapshot snap = score.getSnapshot(true);
+		latest = snap;
+		// hashing and looking up stems stays off the pump thread
+		final StemCache.Stem[] stems = stemCache.lookup(snap);
+		post(new Runnable() {
+			public void run() {
+				// playback notification is sent from the pump thread
+				audio.play(snap, start, stems);
+				// pick up any edits made since the request
+				audio.publish(latest);
+				audioPump.anchor();
+				starting = false;
+			}
+		});
+	}
+	
+	// events handled below
+	static final int[] Events = {
+		Notifier.ScoreChange
+	};
+	
+	@Override
+	public void handleMessage(Message msg) {
+		// hand edits to the playing score over to the pump
+		if (msg.what == Notifier.ScoreChange && score != null && isPlaying()) {
+			ScoreSnapshot snap = score.getSnapshot(false);
+			if (snap != latest) {
+				latest = snap;
+				audio.publish(snap);
+			}
+		}
 	}
 
 	/**
@@ -202,7 +569,13 @@ public enum Engine {
 	 * active voices will be allowed to play out
 	 */
 	public synchronized void stop() {
-		audio.stop();
+		if (audio != null) {
+			post(new Runnable() {
+				public void run() {
+					audio.stop();
+				}
+			});
+		}
 	}
 
 	/**
@@ -210,14 +583,48 @@ public enum Engine {
 	 * @return true if a score is playing 
 	 */
 	public boolean isPlaying() {
-		return audio.isPlaying();
+		Audio a = audio;
+		return starting || (a != null && a.isPlaying());
 	}
 
+	/**
+	 * get the score time now being heard
+	 * safe to call from any thread, e.g. once per display frame
+	 * 
+	 * @return time in decimal seconds, or 0 if nothing has played
+	 */
+	public float getPlaybackTime() {
+		long base = playheadBase;
+		if (base == 0) {
+			return 0;
+		}
+		// before the track starts, time zero is still to come
+		return Math.max(0, (float)(System.nanoTime() - base) * 1e-9f);
+	}
+	
+	/**
+	 * get the score frame now being heard
+	 * @return frame position at the output sample rate
+	 */
+	public long getPlaybackFrame() {
+		return (long)(getPlaybackTime() * sampleRate);
+	}
+	
+	/**
+	 * get number of audio underruns detected
+	 * @return underrun count
+	 */
+	public int getUnderrunCount() {
+		BufferTuner t = tuner;
+		return t != null ? t.getUnderruns() : 0;
+	}
+	
 	/**
 	 * return voice activity status
 	 * @return true if a voice is active 
 	 */
 	public boolean isCalling() {
-		return audio.isCalling();
+		Audio a = audio;
+		return a != null && a.isCalling();
 	}
 }
@@ -0,0 +1,183 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.io.File;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.os.Environment;
+
+import com.wordsaretoys.quencher.R;
+import com.wordsaretoys.quencher.common.Notifier;
+import com.wordsaretoys.quencher.data.Score;
+
+/**
+ * base class for rendering a score to a music file
+ *
+ * handles the audio generator, the output file name,
+ * and the progress notification; subclasses supply
+ * the writing pump
+ */
+public abstract class Export {
+
+	// audio sample rate in Hz
+	static final int SampleRate = 44100;
+
+	// monotically increasing notification ID source
+	static int NotificationId = 0;
+
+	// maximum progress for notifications
+	static int MaxProgress = 100;
+
+	// audio generator object
+	protected Audio audio;
+
+	// writing pump
+	private Thread pump;
+
+	// score to render
+	protected Score score;
+
+	// activity context
+	protected Context context;
+
+	// notification manager
+	private NotificationManager notifyManager;
+
+	// notification builder
+	private Notification.Builder notifyBuilder;
+
+	// notification ID
+	private int notifyId = NotificationId++;
+
+	// last progress update
+	private int lastProgress;
+
+	// name of file being generated
+	protected String fileName;
+
+	// reference to app resources
+	protected Resources res;
+
+	/**
+	 * ctor
+	 * @param c activity context
+	 */
+	public Export(Context c) {
+		context = c;
+		res = context.getResources();
+	}
+
+	/**
+	 * get the file extension for the format
+	 * @return extension, including the dot
+	 */
+	protected abstract String getFileExt();
+
+	/**
+	 * get the notification text shown while rendering
+	 * @return string resource ID, formatted with the file name
+	 */
+	protected abstract int getStartText();
+
+	/**
+	 * render the score and write the file
+	 * called on the pump thread
+	 */
+	protected abstract void write();
+
+	/**
+	 * start rendering
+	 */
+	public void create(Score s) {
+		score = s;
+		audio = new Audio(SampleRate);
+		audio.setLatency(1);
+		// no deadline offline, so modulate every frame
+		audio.setControlPeriod(1);
+		audio.play(score.getSnapshot(true), 0);
+
+		File path =
+				Environment.getExternalStoragePublicDirectory(
+						Environment.DIRECTORY_MUSIC);
+		fileName = path.getAbsolutePath() + "/" + score.getName() + getFileExt();
+
+		notifyManager = (NotificationManager)
+				context.getSystemService(Context.NOTIFICATION_SERVICE);
+		notifyBuilder = new Notification.Builder(context);
+
+		notifyBuilder.setContentTitle(res.getString(R.string.app_name));
+		notifyBuilder.setContentText(
+				String.format(
+						res.getString(getStartText()), fileName));
+		notifyBuilder.setSmallIcon(android.R.drawable.ic_media_play);
+		notifyBuilder.setProgress(MaxProgress, 0, false);
+
+		notifyManager.notify(notifyId, notifyBuilder.build());
+
+		// the notification is up before the pump can touch it
+		pump = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		});
+		pump.start();
+	}
+
+	/**
+	 * update the progress bar from the audio generator
+	 */
+	protected void updateProgress() {
+		int prog = (int)(MaxProgress * audio.getElapsedTime() / audio.getScoreTime());
+		if (prog > lastProgress) {
+			notifyBuilder.setProgress(MaxProgress, prog, false);
+			notifyManager.notify(notifyId, notifyBuilder.build());
+			lastProgress = prog;
+		}
+	}
+
+	/**
+	 * switch to indefinite progress with a new message
+	 * @param text string resource ID, formatted with the file name
+	 */
+	protected void showIndefinite(int text) {
+		notifyBuilder.setProgress(0, 0, true);
+		notifyBuilder.setContentText(
+				String.format(
+						res.getString(text), fileName));
+		notifyManager.notify(notifyId, notifyBuilder.build());
+	}
+
+	/**
+	 * report a finished file, linking to the music player
+	 * @param text string resource ID, formatted with the file name
+	 */
+	protected void showComplete(int text) {
+		notifyBuilder.setProgress(0, 0, false);
+		notifyBuilder.setContentText(
+				String.format(
+						res.getString(text), fileName));
+
+		Intent musicIntent =
+				Intent.makeMainSelectorActivity(
+						Intent.ACTION_MAIN, Intent.CATEGORY_APP_MUSIC);
+		PendingIntent launchPlayerIntent =
+				PendingIntent.getActivity(context, 0,
+						musicIntent, Intent.FLAG_ACTIVITY_NEW_TASK);
+		notifyBuilder.setContentIntent(launchPlayerIntent);
+
+		notifyManager.notify(notifyId, notifyBuilder.build());
+	}
+
+	/**
+	 * report a failed file and drop the notification
+	 * @param event notifier event to send
+	 */
+	protected void fail(int event) {
+		Notifier.INSTANCE.send(event);
+		notifyManager.cancel(notifyId);
+	}
+}
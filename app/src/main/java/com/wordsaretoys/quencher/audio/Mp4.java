@@ -1,150 +1,78 @@
 package com.wordsaretoys.quencher.audio;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import android.annotation.TargetApi;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
-import android.content.res.Resources;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.MediaMuxer.OutputFormat;
-import android.os.Environment;
 
 import com.wordsaretoys.quencher.R;
 import com.wordsaretoys.quencher.common.Notifier;
-import com.wordsaretoys.quencher.data.Score;
 
 
 /**
  * encodes a score into an MP4 audio file
  */
-public class Mp4 {
+public class Mp4 extends Export {
 
-	// audio sample rate in Hz
-	static final int SampleRate = 44100;
-
-	// monotically increasing notification ID source
-	static int NotificationId = 0;
-	
-	// maximum progress for notifications
-	static int MaxProgress = 100;
-	
 	// file extension 
 	static String FileExt = ".mp4";
 	
-	// audio generator object
-	private Audio audio;
-	
-	// audio encoding pump
-	private Thread pump;
-
-	// score to encode
-	private Score score;
-	
-	// activity context
-	private Context context;
-	
-	// notification manager
-	private NotificationManager notifyManager;
-	
-	// notification builder
-	private Notification.Builder notifyBuilder;
-	
-	// notification ID
-	private int notifyId = NotificationId++;
-	
-	// last progress update
-	private int lastProgress;
-	
-	// name of file being generated
-	private String fileName;
-
-	// reference to app resources
-	private Resources res;
-	
 	/**
 	 * ctor
 	 * @param c activity context
 	 */
 	public Mp4(Context c) {
-		context = c;
-		res = context.getResources();
+		super(c);
 	}
 	
-	/**
-	 * start encoding
-	 */
-	public void create(Score s) {
-		score = s;
-		audio = new Audio(SampleRate);
-		audio.setLatency(1);
-		audio.play(score, 0);
-		pump = new Thread(new Pump());
-		pump.start();
-
-		File path = 
-				Environment.getExternalStoragePublicDirectory(
-						Environment.DIRECTORY_MUSIC);
-		fileName = path.getAbsolutePath() + "/" + score.getName() + FileExt;
-		
-		notifyManager = (NotificationManager) 
-				context.getSystemService(Context.NOTIFICATION_SERVICE);
-		notifyBuilder = new Notification.Builder(context);
-		
-		notifyBuilder.setContentTitle(res.getString(R.string.app_name));
-		notifyBuilder.setContentText(
-				String.format(
-						res.getString(R.string.mp4Encoding), fileName));
-		notifyBuilder.setSmallIcon(android.R.drawable.ic_media_play);
-		notifyBuilder.setProgress(MaxProgress, 0, false);
-		
-		notifyManager.notify(notifyId, notifyBuilder.build());
+	@Override
+	protected String getFileExt() {
+		return FileExt;
+	}
+	
+	@Override
+	protected int getStartText() {
+		return R.string.mp4Encoding;
 	}
 	
 	/**
 	 * audio encoding thread pump
 	 */
-	class Pump implements Runnable {
+	@Override
+	protected void write() {
 
-		@Override
-		public void run() {
+		// create objects to encode mp4 AAC audio
+		MediaCodec encoder = MediaCodec.createEncoderByType("audio/mp4a-latm");
+		
+		MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", SampleRate, 2);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, 64000); // 64Kb/s
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectHE);
+		
+		encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		encoder.start();
+		
+		InputHandler input = new InputHandler(encoder);
+		OutputHandler output = new OutputHandler(encoder);
+		
+		while (!output.isFinished()) {
 
-			// create objects to encode mp4 AAC audio
-			MediaCodec encoder = MediaCodec.createEncoderByType("audio/mp4a-latm");
-			
-			MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", SampleRate, 2);
-			format.setInteger(MediaFormat.KEY_BIT_RATE, 64000); // 64Kb/s
-			format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectHE);
-			
-			encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-			encoder.start();
-			
-			InputHandler input = new InputHandler(encoder);
-			OutputHandler output = new OutputHandler(encoder);
+			if (!input.isFinished()) {
+				input.run();
+			}
 			
-			while (!output.isFinished()) {
-
-				if (!input.isFinished()) {
-					input.run();
-				}
-				
-				try {
-					output.run();
-				} catch (Exception e) {
-					e.printStackTrace();
-					Notifier.INSTANCE.send(Notifier.Mp4WriteFailed);
-					notifyManager.cancel(notifyId);
-					return;
-				}
+			try {
+				output.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail(Notifier.Mp4WriteFailed);
+				return;
 			}
 		}
 	}
@@ -182,20 +110,11 @@ public class Mp4 {
 			finished = !(audio.isPlaying() || audio.isCalling());
 			
 			if (!finished) {
-				int prog = (int)(MaxProgress * audio.getElapsedTime() / audio.getScoreTime());
-				if (prog > lastProgress) {
-					notifyBuilder.setProgress(MaxProgress, prog, false);
-					notifyManager.notify(notifyId, notifyBuilder.build());
-					lastProgress = prog;
-				}
+				updateProgress();
 			} else {
 				// switch to indefinite progress as we don't know 
 				// how long the muxer will take to write it all
-				notifyBuilder.setProgress(0, 0, true);
-				notifyBuilder.setContentText(
-						String.format(
-								res.getString(R.string.mp4Writing), fileName));
-				notifyManager.notify(notifyId, notifyBuilder.build());
+				showIndefinite(R.string.mp4Writing);
 			}
 		}
 		
@@ -278,20 +197,7 @@ public class Mp4 {
 					muxer.release();
 					muxer = null;
 					
-					notifyBuilder.setProgress(0, 0, false);
-					notifyBuilder.setContentText(
-							String.format(
-									res.getString(R.string.mp4Complete), fileName));
-					
-					Intent musicIntent = 
-							Intent.makeMainSelectorActivity(
-									Intent.ACTION_MAIN, Intent.CATEGORY_APP_MUSIC);
-					PendingIntent launchPlayerIntent = 
-							PendingIntent.getActivity(context, 0, 
-									musicIntent, Intent.FLAG_ACTIVITY_NEW_TASK);
-					notifyBuilder.setContentIntent(launchPlayerIntent);
-					
-					notifyManager.notify(notifyId, notifyBuilder.build());
+					showComplete(R.string.mp4Complete);
 				}
 				
 			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
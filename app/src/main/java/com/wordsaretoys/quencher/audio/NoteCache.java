@@ -0,0 +1,367 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * caches pre-rendered notes for replay
+ *
+ * a voice bank note is fully determined by its
+ * compiled voice, frequency and loudness; pan is
+ * only a pair of channel gains. so each distinct
+ * note is rendered once, in mono, and repeats are
+ * mixed from the cached samples
+ *
+ * a note that misses plays live, while a copy
+ * is rendered in the background for next time
+ *
+ * the audio thread never locks or allocates here:
+ * lookups read an immutable table the renderer
+ * republishes, and misses go out through a ring
+ * the renderer drains
+ */
+public class NoteCache implements Runnable {
+
+	static final String TAG = "NoteCache";
+
+	// most misses waiting for the renderer (power of 2)
+	static final int QueueLength = 64;
+
+	/**
+	 * synthesis settings and memory cap
+	 */
+	static class Settings {
+		int sampleRate, controlPeriod;
+		long budget;
+	}
+
+	/**
+	 * immutable open-addressed table of rendered notes
+	 */
+	static class Table {
+
+		// settings the notes were rendered with
+		final Settings settings;
+
+		// keys and samples; a null slot is empty
+		final long[] keys;
+		final float[][] data;
+		final int mask;
+
+		// notes held and their size in bytes
+		final int count;
+		final long used;
+
+		/**
+		 * build a table from the renderer's notes
+		 * @param s settings the notes were rendered with
+		 * @param notes notes by key
+		 * @param u size of notes in bytes
+		 */
+		Table(Settings s, Map<Long, float[]> notes, long u) {
+			settings = s;
+			int length = 16;
+			while (length < 2 * notes.size()) {
+				length <<= 1;
+			}
+			keys = new long[length];
+			data = new float[length][];
+			mask = length - 1;
+			for (Map.Entry<Long, float[]> e : notes.entrySet()) {
+				long key = e.getKey();
+				int i = slot(key);
+				while (data[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				data[i] = e.getValue();
+			}
+			count = notes.size();
+			used = u;
+		}
+
+		/**
+		 * find a note
+		 * @param key cache key
+		 * @return mono samples, or null if missing
+		 */
+		float[] get(long key) {
+			for (int i = slot(key); data[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return data[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * get the first slot to probe for a key
+		 * @param key cache key
+		 * @return slot index
+		 */
+		int slot(long key) {
+			return (int)(key ^ (key >>> 32)) & mask;
+		}
+	}
+
+	/**
+	 * playback state of a cached note
+	 */
+	static class Playback {
+
+		// mono samples, or null if inactive
+		float[] data;
+
+		// next sample to play
+		int position;
+
+		// channel gains
+		float left, right;
+
+		// time at which playback becomes active
+		float start;
+
+		/**
+		 * mix the next section of the note into a buffer
+		 * @param buffer interleaved stereo staging buffer
+		 * @param frame starting frame within buffer
+		 * @return true if the note continues past this buffer
+		 */
+		boolean mix(float[] buffer, int frame) {
+			float[] d = data;
+			int p = position;
+			int n = Math.min(buffer.length / 2 - frame, d.length - p);
+			float l = left, r = right;
+			for (int k = 2 * frame, kl = 2 * (frame + n); k < kl; k += 2) {
+				float m = d[p++];
+				buffer[k] += m * l;
+				buffer[k + 1] += m * r;
+			}
+			position = p;
+			return p < d.length;
+		}
+	}
+
+	// settings requested by the pump
+	private volatile Settings settings;
+
+	// notes published for lookup
+	private volatile Table table;
+
+	// misses waiting for the renderer
+	// the pump writes head, the renderer writes tail
+	private final long[] queueKey = new long[QueueLength];
+	private final VoicePatch[] queuePatch = new VoicePatch[QueueLength];
+	private final float[] queueFreq = new float[QueueLength];
+	private final float[] queueLoud = new float[QueueLength];
+	private volatile int head, tail;
+
+	// background renderer
+	private final Thread renderer;
+
+	// true while the renderer is waiting for work
+	private volatile boolean parked;
+
+	// notes by key, oldest first (renderer only)
+	// hits are served from the table, so eviction is by age
+	private LinkedHashMap<Long, float[]> notes;
+
+	// memory used by notes in bytes (renderer only)
+	private long used;
+
+	// lookup statistics (pump only)
+	private long hits, requests;
+
+	/**
+	 * ctor
+	 */
+	public NoteCache() {
+		notes = new LinkedHashMap<Long, float[]>(64);
+		settings = new Settings();
+		table = new Table(settings, notes, 0);
+		renderer = new Thread(this, "note renderer");
+		renderer.setPriority(Thread.MIN_PRIORITY);
+		renderer.start();
+	}
+
+	/**
+	 * apply synthesis settings and memory cap
+	 * changed settings invalidate every note
+	 *
+	 * @param rate sample rate in Hz
+	 * @param period voice bank control period
+	 * @param mb memory cap in megabytes
+	 */
+	public void configure(int rate, int period, int mb) {
+		Settings s = new Settings();
+		s.sampleRate = rate;
+		s.controlPeriod = period;
+		s.budget = (long) mb << 20;
+		// lookups miss until the renderer publishes a matching table
+		settings = s;
+		wake();
+	}
+
+	/**
+	 * get a rendered note, scheduling a render if it's missing
+	 * @param patch compiled voice
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @return mono samples, or null if not yet rendered
+	 */
+	float[] request(VoicePatch patch, float freq, float loud) {
+		long key = StemCache.hash(StemCache.hash(patch.hash, freq), loud);
+		requests++;
+		Table t = table;
+		float[] data = t.settings == settings ? t.get(key) : null;
+		if (data != null) {
+			hits++;
+		} else if (settings.budget > 0) {
+			schedule(key, patch, freq, loud);
+		}
+		return data;
+	}
+
+	/**
+	 * get fraction of requests served from the cache
+	 * @return hit rate (0..1)
+	 */
+	public float getHitRate() {
+		return requests > 0 ? (float) hits / (float) requests : 0;
+	}
+
+	/**
+	 * log and reset lookup statistics
+	 */
+	public void report() {
+		if (requests > 0) {
+			Table t = table;
+			Log.i(TAG, t.count + " notes (" + (t.used >> 10) + " KB), " +
+					(int)(100 * getHitRate()) + "% of " + requests + " hit");
+		}
+		hits = requests = 0;
+	}
+
+	/**
+	 * queue a note for rendering
+	 * a full queue drops the note; it asks again when it next plays
+	 *
+	 * @param key cache key
+	 * @param patch compiled voice
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 */
+	private void schedule(long key, VoicePatch patch, float freq, float loud) {
+		int h = head;
+		if (h - tail == QueueLength) {
+			return;
+		}
+		int i = h & (QueueLength - 1);
+		queueKey[i] = key;
+		queuePatch[i] = patch;
+		queueFreq[i] = freq;
+		queueLoud[i] = loud;
+		// the volatile write hands the slot to the renderer
+		head = h + 1;
+		wake();
+	}
+
+	/**
+	 * wake the renderer if it's waiting
+	 */
+	private void wake() {
+		if (parked) {
+			LockSupport.unpark(renderer);
+		}
+	}
+
+	@Override
+	public void run() {
+		Settings applied = table.settings;
+		while (true) {
+
+			// pick up new settings
+			Settings s = settings;
+			if (s != applied) {
+				if (s.sampleRate != applied.sampleRate || 
+						s.controlPeriod != applied.controlPeriod) {
+					notes.clear();
+					used = 0;
+				}
+				applied = s;
+				trim(s.budget);
+				table = new Table(s, notes, used);
+			}
+
+			// nothing to do; wait for the pump
+			int t = tail;
+			if (t == head) {
+				parked = true;
+				while (tail == head && settings == applied) {
+					LockSupport.park(this);
+				}
+				parked = false;
+				continue;
+			}
+
+			// take the next miss
+			int i = t & (QueueLength - 1);
+			long key = queueKey[i];
+			VoicePatch patch = queuePatch[i];
+			float freq = queueFreq[i];
+			float loud = queueLoud[i];
+			queuePatch[i] = null;
+			tail = t + 1;
+
+			// a note may miss several times before it's rendered
+			if (notes.containsKey(key) || s.budget == 0) {
+				continue;
+			}
+			float[] data = render(patch, freq, loud, s.sampleRate, s.controlPeriod);
+			notes.put(key, data);
+			used += 4L * data.length;
+			trim(s.budget);
+			table = new Table(s, notes, used);
+		}
+	}
+
+	/**
+	 * synthesize a note in mono
+	 * @param patch compiled voice
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @param rate sample rate in Hz
+	 * @param period voice bank control period
+	 * @return mono samples
+	 */
+	private static float[] render(VoicePatch patch, float freq, float loud, int rate, int period) {
+		VoiceBank bank = new VoiceBank(rate);
+		bank.setControlPeriod(period);
+		// hard left pan puts the whole signal in one channel
+		bank.add(patch, 0, freq, loud, -1);
+		int length = (int)(patch.duration * rate) + 2 * VoiceBank.BlockLength;
+		float[] stereo = new float[2 * length];
+		bank.sample(stereo, 0);
+		float[] data = new float[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = stereo[2 * i];
+		}
+		return data;
+	}
+
+	/**
+	 * evict the oldest notes until within the cap
+	 * @param budget memory cap in bytes
+	 */
+	private void trim(long budget) {
+		Iterator<float[]> it = notes.values().iterator();
+		while (used > budget && it.hasNext()) {
+			used -= 4L * it.next().length;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,647 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.wordsaretoys.quencher.data.ScoreSnapshot;
+
+/**
+ * caches the rendered PCM output of individual tracks
+ *
+ * each stem is keyed by a hash of everything that
+ * affects its sound: note times and frequencies (so
+ * tempo, timing, scale and tuning), volume, pan, the
+ * compiled voice, and the synthesis settings. when a
+ * score is replayed, tracks whose hash is unchanged
+ * are mixed from their stems instead of synthesized
+ *
+ * missing stems are rendered in a background thread
+ * while the score plays live. stems are held on the
+ * heap up to a memory budget; beyond that, they go to
+ * memory-mapped files in the cache directory, least
+ * recently used first
+ *
+ * stems are looked up and pinned on the caller's thread
+ * before playback starts. the audio thread only mixes
+ * pinned stems, which stay on the heap until it lets
+ * them go, so it never hashes, waits on a lock, or
+ * touches a mapped file. spilled stems are read back
+ * to the heap in the background for the next play
+ */
+public class StemCache {
+
+	static final String TAG = "StemCache";
+
+	// seed value for content hashes (FNV-1a offset basis)
+	static final long HashSeed = 0xcbf29ce484222325L;
+
+	// FNV-1a prime
+	static final long HashPrime = 0x100000001b3L;
+
+	// frames rendered per block
+	static final int RenderLength = 1024;
+
+	// disk budget as a multiple of memory budget
+	static final int DiskFactor = 8;
+
+	// most samples a stem can hold in one array
+	static final long MaxSamples = Integer.MAX_VALUE - 8;
+
+	/**
+	 * rendered output of a single track
+	 */
+	static class Stem {
+
+		// content hash
+		final long hash;
+
+		// length in frames
+		final int length;
+
+		// sample rate it was rendered at
+		final int rate;
+
+		// interleaved stereo samples on the heap, or null if spilled
+		volatile float[] data;
+
+		// interleaved stereo samples in a mapped file, or null
+		volatile FloatBuffer mapped;
+
+		// backing file, if any
+		File file;
+
+		// number of players holding the stem on the heap
+		final AtomicInteger pins = new AtomicInteger();
+
+		/**
+		 * ctor
+		 * @param h content hash
+		 * @param l length in frames
+		 * @param r sample rate in Hz
+		 */
+		Stem(long h, int l, int r) {
+			hash = h;
+			length = l;
+			rate = r;
+		}
+
+		/**
+		 * let go of a stem pinned by lookup()
+		 * safe to call from the audio thread
+		 */
+		void unpin() {
+			pins.decrementAndGet();
+		}
+
+		/**
+		 * determine if any player is holding the stem
+		 * @return true if pinned
+		 */
+		boolean isPinned() {
+			return pins.get() > 0;
+		}
+
+		/**
+		 * get size of stem samples
+		 * @return size in bytes
+		 */
+		long getBytes() {
+			return 8L * length;
+		}
+
+		/**
+		 * mix part of a pinned stem into a buffer
+		 * 
+		 * the stem can be cut off early, fading out over
+		 * the frames before the cut
+		 * 
+		 * @param buffer interleaved stereo staging buffer
+		 * @param frame stem frame at start of buffer
+		 * @param end stem frame to stop at
+		 * @param fade length of fade before the stop, in frames
+		 * @return true if the stem continues past this buffer
+		 */
+		boolean mix(float[] buffer, long frame, long end, int fade) {
+			float[] src = data;
+			if (src == null) {
+				// only pinned stems are mixed, so this shouldn't happen
+				return false;
+			}
+			int frames = buffer.length / 2;
+			long stop = Math.min(length, end);
+			int n = (int) Math.max(0, Math.min(frames, stop - frame));
+			if (n == 0) {
+				return false;
+			}
+			// frames before the fade starts
+			int m = (int) Math.max(0, Math.min(n, end - fade - frame));
+			int k0 = (int)(2 * frame);
+			for (int k = 0; k < 2 * m; k++) {
+				buffer[k] += src[k0 + k];
+			}
+			if (m < n) {
+				float dg = 1f / fade;
+				float g = (float)(end - frame - m) * dg;
+				for (int k = 2 * m; k < 2 * n; k += 2, g -= dg) {
+					buffer[k] += g * src[k0 + k];
+					buffer[k + 1] += g * src[k0 + k + 1];
+				}
+			}
+			return frame + frames < stop;
+		}
+	}
+
+	/**
+	 * a stem playing out to a fixed end
+	 */
+	static class Tail {
+
+		// stem object
+		final Stem stem;
+
+		// stem frame to stop at
+		final long end;
+
+		// length of fade before the stop, in frames
+		final int fade;
+
+		/**
+		 * ctor
+		 * @param s pinned stem
+		 * @param e stem frame to stop at
+		 * @param f length of fade in frames
+		 */
+		Tail(Stem s, long e, int f) {
+			stem = s;
+			end = e;
+			fade = f;
+		}
+	}
+
+	/**
+	 * note times and sound settings of a track
+	 */
+	static class Source {
+		VoicePatch patch;
+		float[] times, freqs;
+		float loud, pan;
+		long hash;
+	}
+
+	// directory for spilled stems
+	private File dir;
+
+	// stems by hash, in access order
+	private LinkedHashMap<Long, Stem> stems;
+
+	// hashes of stems being rendered or read back
+	private HashSet<Long> pending;
+
+	// hashes of stems too long to render
+	private HashSet<Long> skipped;
+
+	// stems dropped from the cache while still pinned
+	private ArrayList<Stem> retired;
+
+	// background renderer
+	private ExecutorService renderer;
+
+	// synthesis settings
+	private int sampleRate, controlPeriod;
+
+	// budgets and current usage in bytes
+	private long memoryBudget, diskBudget;
+	private long memoryUsed, diskUsed;
+
+	/**
+	 * ctor
+	 * @param d directory for spilled stems
+	 */
+	public StemCache(File d) {
+		dir = d;
+		stems = new LinkedHashMap<Long, Stem>(16, 0.75f, true);
+		pending = new HashSet<Long>();
+		skipped = new HashSet<Long>();
+		retired = new ArrayList<Stem>();
+		renderer = createRenderer("stem renderer");
+		// stems don't survive a restart; clear them off the caller's thread
+		renderer.execute(new Runnable() {
+			public void run() {
+				dir.mkdirs();
+				File[] old = dir.listFiles();
+				if (old != null) {
+					for (File f : old) {
+						f.delete();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * apply synthesis settings and memory budget
+	 * changed settings invalidate every stem
+	 *
+	 * @param rate sample rate in Hz
+	 * @param period voice bank control period
+	 * @param mb memory budget in megabytes
+	 */
+	public synchronized void configure(int rate, int period, int mb) {
+		if (rate != sampleRate || period != controlPeriod) {
+			sampleRate = rate;
+			controlPeriod = period;
+			for (Stem stem : stems.values()) {
+				if (stem.isPinned()) {
+					// still playing; released once it's let go
+					retired.add(stem);
+				} else {
+					release(stem);
+				}
+			}
+			stems.clear();
+			skipped.clear();
+		}
+		memoryBudget = (long) mb << 20;
+		diskBudget = DiskFactor * memoryBudget;
+		trim();
+	}
+
+	/**
+	 * find and pin the stems for a score's tracks
+	 * 
+	 * missing stems are scheduled for rendering, and
+	 * spilled ones for reading back to the heap. call
+	 * from the thread that starts playback, never the
+	 * audio thread; the player unpins each stem it gets
+	 * 
+	 * @param snap snapshot of score
+	 * @return pinned stems by track (null where missing),
+	 * or null if the cache is off
+	 */
+	public Stem[] lookup(ScoreSnapshot snap) {
+		int rate, period;
+		synchronized(this) {
+			if (memoryBudget == 0) {
+				return null;
+			}
+			rate = sampleRate;
+			period = controlPeriod;
+		}
+		Stem[] found = new Stem[snap.parts.length];
+		for (int i = 0; i < found.length; i++) {
+			ScoreSnapshot.Part part = snap.parts[i];
+			if (part.muted) {
+				continue;
+			}
+			Source src = snapshot(part, snap.tempo, rate, period);
+			synchronized(this) {
+				if (rate != sampleRate || period != controlPeriod) {
+					// settings changed under us; stems would be stale
+					break;
+				}
+				Stem stem = stems.get(src.hash);
+				if (stem == null) {
+					if (!skipped.contains(src.hash) && pending.add(src.hash)) {
+						schedule(src);
+					}
+				} else if (stem.data != null) {
+					stem.pins.incrementAndGet();
+					found[i] = stem;
+				} else if (pending.add(stem.hash)) {
+					schedulePromote(stem);
+				}
+			}
+		}
+		synchronized(this) {
+			trim();
+		}
+		return found;
+	}
+
+	/**
+	 * convert a track snapshot to note times and hash its contents
+	 * @param part snapshot of track
+	 * @param tempo score tempo
+	 * @param rate sample rate in Hz
+	 * @param period voice bank control period
+	 * @return source object
+	 */
+	private Source snapshot(ScoreSnapshot.Part part, int tempo, int rate, int period) {
+		Source src = new Source();
+		int n = part.getNoteCount();
+		src.patch = part.patch;
+		src.times = new float[n];
+		src.freqs = new float[n];
+		src.loud = part.volume;
+		src.pan = part.pan;
+
+		long h = hash(src.patch.hash, src.loud);
+		h = hash(h, src.pan);
+		h = hash(h, rate);
+		h = hash(h, period);
+		for (int i = 0; i < n; i++) {
+			src.times[i] = part.positionToTime(part.positions[i], tempo);
+			src.freqs[i] = part.freqs[i];
+			h = hash(h, src.times[i]);
+			h = hash(h, src.freqs[i]);
+		}
+		src.hash = h;
+		return src;
+	}
+
+	/**
+	 * queue a stem for rendering
+	 * @param src track snapshot
+	 */
+	private void schedule(final Source src) {
+		final int rate = sampleRate;
+		final int period = controlPeriod;
+		renderer.execute(new Runnable() {
+			public void run() {
+				Stem stem = null;
+				try {
+					stem = render(src, rate, period);
+				} catch (Exception e) {
+					Log.w(TAG, "couldn't render stem", e);
+				}
+				synchronized(StemCache.this) {
+					pending.remove(src.hash);
+					if (stem != null && rate == sampleRate && period == controlPeriod) {
+						add(stem);
+					} else {
+						release(stem);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * queue a spilled stem to be read back to the heap
+	 * @param stem stem object
+	 */
+	private void schedulePromote(final Stem stem) {
+		renderer.execute(new Runnable() {
+			public void run() {
+				float[] data = null;
+				FloatBuffer m = stem.mapped;
+				long budget;
+				synchronized(StemCache.this) {
+					budget = memoryBudget;
+				}
+				if (m != null && stem.getBytes() <= budget) {
+					try {
+						data = new float[2 * stem.length];
+						FloatBuffer fb = m.duplicate();
+						fb.position(0);
+						fb.get(data);
+					} catch (Throwable e) {
+						Log.w(TAG, "couldn't read back stem", e);
+						data = null;
+					}
+				}
+				synchronized(StemCache.this) {
+					pending.remove(stem.hash);
+					// keep it only if it's still the cached, spilled copy
+					if (data != null && stems.get(stem.hash) == stem && 
+							stem.data == null && stem.mapped != null) {
+						diskUsed -= stem.getBytes();
+						memoryUsed += stem.getBytes();
+						stem.data = data;
+						stem.mapped = null;
+						if (stem.file != null) {
+							stem.file.delete();
+							stem.file = null;
+						}
+						trim();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * synthesize a track snapshot to a stem
+	 * @param src track snapshot
+	 * @param rate sample rate in Hz
+	 * @param period voice bank control period
+	 * @return stem object
+	 */
+	private Stem render(Source src, int rate, int period) throws Exception {
+		// length covers the last note and the voice tail
+		float last = src.times.length > 0 ? src.times[src.times.length - 1] : 0;
+		long frames = (long)((double)(last + src.patch.duration) * rate) + 2 * RenderLength;
+		synchronized(this) {
+			// too long for one array or the disk budget; play it live
+			if (2 * frames > MaxSamples || 8 * frames > diskBudget) {
+				skipped.add(src.hash);
+				return null;
+			}
+		}
+		int length = (int) frames;
+		Stem stem = new Stem(src.hash, length, rate);
+
+		// stems that won't fit on the heap render straight to disk
+		boolean toHeap;
+		synchronized(this) {
+			toHeap = stem.getBytes() <= memoryBudget;
+			if (toHeap) {
+				memoryUsed += stem.getBytes();
+			} else {
+				diskUsed += stem.getBytes();
+			}
+		}
+		try {
+			if (toHeap) {
+				stem.data = new float[2 * length];
+			} else {
+				map(stem);
+			}
+		} catch (Exception e) {
+			synchronized(this) {
+				release(stem);
+			}
+			throw e;
+		}
+
+		VoiceBank bank = new VoiceBank(rate);
+		bank.setControlPeriod(period);
+		float[] block = new float[2 * RenderLength];
+		float blockPeriod = (float) RenderLength / (float) rate;
+		int n = 0;
+		for (int f = 0; f < length; f += RenderLength) {
+			float now = (float) f / (float) rate;
+			float next = now + blockPeriod;
+			while (n < src.times.length && src.times[n] < next) {
+				bank.add(src.patch, src.times[n], src.freqs[n], src.loud, src.pan);
+				n++;
+			}
+			Arrays.fill(block, 0);
+			bank.sample(block, now);
+			int c = 2 * Math.min(RenderLength, length - f);
+			if (stem.data != null) {
+				System.arraycopy(block, 0, stem.data, 2 * f, c);
+			} else {
+				stem.mapped.position(2 * f);
+				stem.mapped.put(block, 0, c);
+			}
+		}
+		return stem;
+	}
+
+	/**
+	 * add a rendered stem, trimming to budget
+	 * @param stem stem object
+	 */
+	private void add(Stem stem) {
+		stems.put(stem.hash, stem);
+		trim();
+	}
+
+	/**
+	 * spill and evict least recently used stems until within budget
+	 * pinned stems stay on the heap until they're let go
+	 */
+	private void trim() {
+		for (Iterator<Stem> it = retired.iterator(); it.hasNext(); ) {
+			Stem stem = it.next();
+			if (!stem.isPinned()) {
+				it.remove();
+				release(stem);
+			}
+		}
+		Iterator<Stem> it = stems.values().iterator();
+		while (memoryUsed > memoryBudget && it.hasNext()) {
+			Stem stem = it.next();
+			if (stem.data != null && !stem.isPinned()) {
+				if (spill(stem)) {
+					diskUsed += stem.getBytes();
+					memoryUsed -= stem.getBytes();
+					stem.data = null;
+				} else {
+					it.remove();
+					release(stem);
+				}
+			}
+		}
+		it = stems.values().iterator();
+		while (diskUsed > diskBudget && it.hasNext()) {
+			Stem stem = it.next();
+			if (stem.data == null) {
+				it.remove();
+				release(stem);
+			}
+		}
+	}
+
+	/**
+	 * create a mapped file for a stem
+	 * @param stem stem object
+	 */
+	private void map(Stem stem) throws Exception {
+		stem.file = new File(dir, Long.toHexString(stem.hash) + ".pcm");
+		RandomAccessFile raf = new RandomAccessFile(stem.file, "rw");
+		try {
+			raf.setLength(stem.getBytes());
+			stem.mapped = raf.getChannel()
+					.map(FileChannel.MapMode.READ_WRITE, 0, stem.getBytes())
+					.order(ByteOrder.nativeOrder())
+					.asFloatBuffer();
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * move a heap stem to a mapped file
+	 * @param stem stem object
+	 * @return true if the stem was spilled
+	 */
+	private boolean spill(Stem stem) {
+		try {
+			map(stem);
+			stem.mapped.put(stem.data);
+			return true;
+		} catch (Exception e) {
+			Log.w(TAG, "couldn't spill stem", e);
+			if (stem.file != null) {
+				stem.file.delete();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * release the resources held by a stem
+	 * @param stem stem object, or null
+	 */
+	private void release(Stem stem) {
+		if (stem == null) {
+			return;
+		}
+		if (stem.data != null) {
+			memoryUsed -= stem.getBytes();
+			stem.data = null;
+		} else {
+			diskUsed -= stem.getBytes();
+			stem.mapped = null;
+		}
+		if (stem.file != null) {
+			stem.file.delete();
+		}
+	}
+
+	/**
+	 * create a low-priority background render thread
+	 * @param name thread name
+	 * @return executor service
+	 */
+	static ExecutorService createRenderer(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * mix a 64-bit content hash with an integer
+	 * @param h running hash
+	 * @param v value to mix in
+	 * @return new hash
+	 */
+	static long hash(long h, int v) {
+		for (int i = 0; i < 4; i++) {
+			h = (h ^ (v & 0xff)) * HashPrime;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	/**
+	 * mix a 64-bit content hash with a float
+	 * @param h running hash
+	 * @param v value to mix in
+	 * @return new hash
+	 */
+	static long hash(long h, float v) {
+		return hash(h, Float.floatToIntBits(v));
+	}
+}
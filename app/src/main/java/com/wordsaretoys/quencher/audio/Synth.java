@@ -1,7 +1,6 @@
 package com.wordsaretoys.quencher.audio;
 
 import com.wordsaretoys.quencher.data.Stage;
-import com.wordsaretoys.quencher.data.Stage.Type;
 import com.wordsaretoys.quencher.data.Voice;
 
 /**
@@ -11,33 +10,27 @@ import com.wordsaretoys.quencher.data.Voice;
 public class Synth {
 
 	// base wave buffers
-	private static int SineLength = 8192;
-	private static int SineModulus = SineLength - 1;
-	private static float[] Sine = new float[SineLength];
+	private static final float[] Sine = Wavetables.INSTANCE.getSine();
+	private static final int SineLength = Sine.length;
+	private static final int SineModulus = SineLength - 1;
 
-	private static int CosineLength = 8192;
-	private static int CosineModulus = CosineLength - 1;
-	private static float[] Cosine = new float[CosineLength];
-	
-	private static int SawtoothLength = 8192;
-	private static float[] Sawtooth = new float[SawtoothLength];
-
-	private static int NoiseLength = 65536;
-	private static float[] Noise = new float[NoiseLength];
-
-	private static float[] Square = { 1, -1 };
-
-	// dummy stage object for mixing silence
-	private static Stage silence;
+	private static final float[] Cosine = Wavetables.INSTANCE.getCosine();
+	private static final int CosineLength = Cosine.length;
+	private static final int CosineModulus = CosineLength - 1;
 	
 	// vibrato level (as percentage of note frequency)
-	private static float VibratoLevel = 0.025f;
+	static final float VibratoLevel = 0.025f;
+
+	// default frames per modulator update
+	// modulators move at 25 Hz at most, so 32 frames
+	// tracks them within the wavetable's own resolution
+	static final int DefaultControlPeriod = 32;
 
 	// audio sampling period (sec/sample)
 	private float SamplePeriod;
 
-	// reference to voice object
-	private Voice voice;
+	// compiled voice data
+	private VoicePatch patch;
 
 	// index of current stage
 	private int stage;
@@ -81,59 +74,8 @@ public class Synth {
 	// active state
 	private boolean active;
 
-	// normalization factor for level
-	private float levelFactor;
-	
-	/**
-	 * generate base wave buffers
-	 */
-	public static void makeWaves() {
-		for (int i = 0; i < SineLength; i++) {
-			float t = (float) i / (float) SineLength;
-			Sine[i] = (float) Math.sin(2 * Math.PI * t);
-		}
-
-		for (int i = 0; i < CosineLength; i++) {
-			float t = (float) i / (float) CosineLength;
-			Cosine[i] = (float) Math.cos(2 * Math.PI * t);
-		}
-		
-		float r = 0;
-		for (int i = 0; i < NoiseLength; i++) {
-			Noise[i] = (float) Math.sin(r);
-			r += (2 * Math.random() - 1);
-		}
-		
-/*		float m = 1, r = 0.01f, y0 = 0, y1 = 0;
-		for (int i = 0; i < NoiseLength; i++) {
-			if (m >= 1) {
-				y0 = y1;
-				y1 = (float)(2f * Math.random() - 1f);
-				m = 0;
-			}
-			float m2 = (float)(1f - Math.cos(m * Math.PI)) * 0.5f;
-			Noise[i] = (1 - m2) * y0 + m2 * y1;
-			m += r;
-		}
-*/		
-		for (int i = 0; i < SawtoothLength; i++) {
-			float t = (float) i / (float) SawtoothLength;
-			if (t < 0.25f) {
-				Sawtooth[i] = t * 4;
-			} else if (t >= 0.25f && t < 0.5f) {
-				float mu = (t - 0.25f) * 4;
-				Sawtooth[i] = 1 - mu;
-			} else if (t >= 0.5f && t < 0.75f) {
-				float mu = (t - 0.5f) * 4;
-				Sawtooth[i] = -mu;
-			} else {
-				float mu = (t - 0.75f) * 4;
-				Sawtooth[i] = mu - 1;
-			}
-		}
-		
-		silence = new Stage(null);
-	}
+	// frames per modulator update (1 = every frame)
+	private int controlPeriod = DefaultControlPeriod;
 
 	/**
 	 * get sinewave buffer
@@ -143,12 +85,28 @@ public class Synth {
 		return Sine;
 	}
 	
+	/**
+	 * get cosine wave buffer
+	 * @return cosine wave buffer
+	 */
+	public static float[] getCosineWave() {
+		return Cosine;
+	}
+	
+	/**
+	 * get silent stage object
+	 * @return stage that mixes silence
+	 */
+	static Stage getSilence() {
+		return Wavetables.INSTANCE.getSilence();
+	}
+	
 	/**
 	 * get noise wave buffer
 	 * @return noise wave buffer
 	 */
 	public static float[] getNoiseWave() {
-		return Noise;
+		return Wavetables.INSTANCE.getNoise();
 	}
 	
 	/**
@@ -156,7 +114,7 @@ public class Synth {
 	 * @return square wave buffer
 	 */
 	public static float[] getSquareWave() {
-		return Square;
+		return Wavetables.INSTANCE.getSquare();
 	}
 	
 	/**
@@ -164,7 +122,7 @@ public class Synth {
 	 * @return sawtooth wave buffer
 	 */
 	public static float[] getSawtoothWave() {
-		return Sawtooth;
+		return Wavetables.INSTANCE.getSawtooth();
 	}
 	
 	/**
@@ -178,7 +136,7 @@ public class Synth {
 	 * @param l volume level from UI
 	 * @return transformed volume
 	 */
-	private static float getAdjustedLevel(float l) {
+	static float getAdjustedLevel(float l) {
 		return l * l * l * l;
 	}
 	
@@ -189,7 +147,7 @@ public class Synth {
 	 * @param n noise pitch from UI
 	 * @return transformed noise rate factor
 	 */
-	private static float getAdjustedNoise(float n) {
+	static float getAdjustedNoise(float n) {
 		return  (float) Math.pow(10, 3 * n - 4.5);
 	}
 	
@@ -210,16 +168,28 @@ public class Synth {
 	 * @param chan channel pan (-1..1)
 	 */
 	public void prepare(Voice voice, float start, float freq, float loud, float chan) {
+		prepare(voice.getPatch(), start, freq, loud, chan);
+	}
+	
+	/**
+	 * prepare the synth to play a compiled voice
+	 * @param p compiled voice data
+	 * @param start time in decimal seconds of voice start
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @param chan channel pan (-1..1)
+	 */
+	public void prepare(VoicePatch p, float start, float freq, float loud, float chan) {
 		
-		this.voice = voice;
+		patch = p;
 
 		baseRate = SamplePeriod * freq;
 		waveTime0 = waveTime1 = 0;
 
-		tremoRate = CosineLength * SamplePeriod * voice.getTremolo();
+		tremoRate = CosineLength * SamplePeriod * patch.tremolo;
 		tremoTime = 0;
 		
-		vibraRate = SineLength * SamplePeriod * voice.getVibrato();
+		vibraRate = SineLength * SamplePeriod * patch.vibrato;
 		vibraTime = 0;
 		
 		time = 1;
@@ -229,16 +199,18 @@ public class Synth {
 
 		leftOut = getAdjustedLevel(loud) * (1 - chan) * 0.5f;
 		rightOut = getAdjustedLevel(loud) * (1 + chan) * 0.5f;
-		
-		float lf = 0;
-		for (int i = 0; i < voice.getStageCount(); i++) {
-			lf = Math.max(lf, voice.getStage(i).getLevel());
-		}
-		levelFactor = 1f / lf;
 	
 		active = true;
 	}
 	
+	/**
+	 * set modulator update period
+	 * @param p frames between control points (1 = every frame)
+	 */
+	public void setControlPeriod(int p) {
+		controlPeriod = Math.max(1, p);
+	}
+	
 	/**
 	 * get activity state of synthesizer
 	 * @return true if synth isn't playing
@@ -266,48 +238,16 @@ public class Synth {
 	public void sample(float[] buffer, int index, int length) {
 		// index must be even so we can interleave stereo samples
 		index = (index / 2) * 2;
+		if (controlPeriod > 1) {
+			sampleControlled(buffer, index, length);
+			return;
+		}
 		// while we're not at the end of the buffer, and still making noise
 		while (index < length && active) {
 
 			// if we're at the end of the current stage
 			if (time >= 1) {
-
-				int toStage = stage + 1;
-				
-				// select the stages to mix between
-				Stage stage0 = stage < voice.getStageCount() ? 
-						voice.getStage(stage) : silence;
-				Stage stage1 = toStage < voice.getStageCount() ? 
-						voice.getStage(toStage) : silence;
-				
-				// reset time and rate
-				rate = SamplePeriod / stage0.getTime();
-				time = 0;
-				
-				// set waveform/level to interpolate from
-				wave0 = stage0.getWaveBuffer();
-				level0 = getAdjustedLevel(levelFactor * stage0.getLevel());
-				waveRate0 = wave0.length * baseRate;
-				if (stage0.getType() == Type.Noise) {
-					waveRate0 *= getAdjustedNoise(stage0.getNoiseFactor());
-				}
-				waveMod0 = wave0.length - 1;
-				waveTime0 = waveTime1;
-				
-				// set waveform/level to interpolate to
-				wave1 = stage1.getWaveBuffer();
-				level1 = getAdjustedLevel(levelFactor * stage1.getLevel());
-				waveRate1 = wave1.length * baseRate;
-				if (stage1.getType() == Type.Noise) {
-					waveRate1 *= getAdjustedNoise(stage1.getNoiseFactor());
-				}
-				waveMod1 = wave1.length - 1;
-				waveTime1 = 0;
-				
-				// advance to next stage
-				stage = toStage;
-				// if both stages are equal, they're both silence, and we're done
-				active = (stage0 != stage1);
+				nextStage();
 			}
 
 			// get the vibrato function
@@ -333,4 +273,126 @@ public class Synth {
 			buffer[index++] += w * rightOut;
 		}
 	}
+
+	/**
+	 * generate the next section of the voice, evaluating
+	 * the modulators once per control period and ramping
+	 * linearly between control points, as the voice bank does
+	 * 
+	 * @param buffer staging buffer
+	 * @param index starting index within staging buffer (even)
+	 * @param length size of staging buffer
+	 */
+	private void sampleControlled(float[] buffer, int index, int length) {
+		while (index < length && active) {
+
+			// if we're at the end of the current stage
+			if (time >= 1) {
+				nextStage();
+				if (!active) {
+					return;
+				}
+			}
+
+			// frames remaining before the stage or buffer ends
+			float left = (1 - time) / rate;
+			int frames = (length - index) / 2;
+			boolean ends = left < frames;
+			int n = ends ? Math.max(1, (int) Math.ceil(left)) : frames;
+
+			// load the state into locals
+			float[] w0 = wave0, w1 = wave1;
+			int m0 = waveMod0, m1 = waveMod1;
+			float wr0 = waveRate0, wr1 = waveRate1;
+			float wt0 = waveTime0, wt1 = waveTime1;
+			float tt = tremoTime, vt = vibraTime;
+			float t = time;
+
+			// modulators at the first control point
+			float va = VibratoLevel * Sine[(int)(vt) & SineModulus];
+			float ca = Cosine[(int)(tt) & CosineModulus];
+
+			while (n > 0) {
+				int c = Math.min(controlPeriod, n);
+				float over = 1f / c;
+
+				// modulators at the next control point
+				float ct = c * rate;
+				vt += c * vibraRate;
+				tt += c * tremoRate;
+				float vb = VibratoLevel * Sine[(int)(vt) & SineModulus];
+				float cb = Cosine[(int)(tt) & CosineModulus];
+
+				// wave gains and phase increments, with their ramps
+				float g0 = ca * (1 - t) * level0;
+				float g1 = ca * t * level1;
+				float dg0 = (cb * (1 - t - ct) * level0 - g0) * over;
+				float dg1 = (cb * (t + ct) * level1 - g1) * over;
+				float p0 = wr0 + va * wr0, p1 = wr1 + va * wr1;
+				float dv = (vb - va) * over;
+				float dp0 = dv * wr0, dp1 = dv * wr1;
+
+				for (int il = index + 2 * c; index < il; index += 2) {
+					float w = g0 * w0[(int)(wt0) & m0] + g1 * w1[(int)(wt1) & m1];
+					wt0 += p0;
+					wt1 += p1;
+					p0 += dp0;
+					p1 += dp1;
+					g0 += dg0;
+					g1 += dg1;
+
+					buffer[index] += w * leftOut;
+					buffer[index + 1] += w * rightOut;
+				}
+
+				t += ct;
+				va = vb;
+				ca = cb;
+				n -= c;
+			}
+
+			// store the state
+			waveTime0 = wt0;
+			waveTime1 = wt1;
+			tremoTime = tt;
+			vibraTime = vt;
+			// rounding mustn't hold the stage over for an extra frame
+			time = ends ? Math.max(t, 1) : t;
+		}
+	}
+
+	/**
+	 * advance to the next stage of the voice
+	 * deactivates the synth once it reaches silence
+	 */
+	private void nextStage() {
+		int toStage = stage + 1;
+		
+		// select the stages to mix between
+		int stage0 = patch.entry(stage);
+		int stage1 = patch.entry(toStage);
+		
+		// reset time and rate
+		rate = SamplePeriod * patch.timeRate[stage0];
+		time = 0;
+		
+		// set waveform/level to interpolate from
+		wave0 = patch.wave[stage0];
+		level0 = patch.level[stage0];
+		waveRate0 = patch.waveScale[stage0] * baseRate;
+		waveMod0 = wave0.length - 1;
+		waveTime0 = waveTime1;
+		
+		// set waveform/level to interpolate to
+		wave1 = patch.wave[stage1];
+		level1 = patch.level[stage1];
+		waveRate1 = patch.waveScale[stage1] * baseRate;
+		waveMod1 = wave1.length - 1;
+		waveTime1 = 0;
+		
+		// advance to next stage
+		stage = toStage;
+		// if both stages are equal, they're both silence, and we're done
+		active = (stage0 != stage1);
+	}
 }
@@ -0,0 +1,477 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.util.Arrays;
+
+import com.wordsaretoys.quencher.data.Voice;
+
+/**
+ * implements a bank of synthesizers that play
+ * many notes at once; at a control period of one
+ * frame, output matches a pool of Synth objects
+ *
+ * the state of every active voice is kept in
+ * parallel primitive arrays, and the mix runs
+ * in short blocks: each voice is advanced over
+ * a block in a tight loop on local variables,
+ * so the output slice stays in cache while all
+ * the voices are summed into it
+ *
+ * active voices are packed at the front of the
+ * arrays; a finished voice swaps with the last
+ *
+ * vibrato, tremolo, and stage crossfades move at
+ * LFO rates, so they're evaluated at control points
+ * every few frames and ramped linearly in between
+ */
+public class VoiceBank {
+
+	// number of frames mixed per block
+	static final int BlockLength = 256;
+
+	// initial capacity in voices
+	static final int InitialCapacity = 32;
+
+	// default frames per modulator update
+	static final int DefaultControlPeriod = Synth.DefaultControlPeriod;
+
+	// audio sampling rate (samples/sec) and period (sec/sample)
+	private int sampleRate;
+	private float samplePeriod;
+
+	// frames per modulator update (1 = every frame)
+	private int controlPeriod = DefaultControlPeriod;
+
+	// number of active voices
+	private int count;
+
+	// compiled voice data
+	private VoicePatch[] patch;
+
+	// index of current stage
+	private int[] stage;
+
+	// interpolation factor/time in stage (0..1) and its rate
+	private float[] time, rate;
+
+	// wave buffers to interpolate between at current stage
+	private float[][] wave0, wave1;
+
+	// modulus for waveform sampling at current stage
+	private int[] waveMod0, waveMod1;
+
+	// wave volume levels at current stage
+	private float[] level0, level1;
+
+	// base rate for waveform sampling
+	private float[] baseRate;
+
+	// rate and time for sampling each wave at current stage
+	private float[] waveRate0, waveTime0, waveRate1, waveTime1;
+
+	// rate and time for tremolo effect
+	private float[] tremoRate, tremoTime;
+
+	// rate and time for vibrato effect
+	private float[] vibraRate, vibraTime;
+
+	// maximum loudness of voice in each channel
+	private float[] leftOut, rightOut;
+
+	// time at which each voice becomes active
+	private float[] timestamp;
+
+	/**
+	 * ctor
+	 * @param s sample rate in Hz
+	 */
+	public VoiceBank(int s) {
+		sampleRate = s;
+		samplePeriod = 1f / (float) s;
+		allocate(InitialCapacity);
+	}
+
+	/**
+	 * get modulator update period
+	 * @return frames between control points
+	 */
+	public int getControlPeriod() {
+		return controlPeriod;
+	}
+	
+	/**
+	 * set modulator update period
+	 * @param p frames between control points (1 = every frame)
+	 */
+	public void setControlPeriod(int p) {
+		controlPeriod = Math.max(1, p);
+	}
+
+	/**
+	 * get number of active voices
+	 * @return voice count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * drop all voices
+	 */
+	public void clear() {
+		Arrays.fill(patch, 0, count, null);
+		Arrays.fill(wave0, 0, count, null);
+		Arrays.fill(wave1, 0, count, null);
+		count = 0;
+	}
+
+	/**
+	 * add a voice to the bank
+	 * @param v object with voice data/samples
+	 * @param start time in decimal seconds of voice start
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @param chan channel pan (-1..1)
+	 */
+	public void add(Voice v, float start, float freq, float loud, float chan) {
+		add(v.getPatch(), start, freq, loud, chan);
+	}
+
+	/**
+	 * add a voice to the bank
+	 * @param p compiled voice data
+	 * @param start time in decimal seconds of voice start
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @param chan channel pan (-1..1)
+	 */
+	public void add(VoicePatch p, float start, float freq, float loud, float chan) {
+		if (count == patch.length) {
+			allocate(count * 2);
+		}
+		int i = count++;
+
+		patch[i] = p;
+		baseRate[i] = samplePeriod * freq;
+		waveTime0[i] = waveTime1[i] = 0;
+
+		tremoRate[i] = Synth.getCosineWave().length * samplePeriod * p.tremolo;
+		tremoTime[i] = 0;
+
+		vibraRate[i] = Synth.getSineWave().length * samplePeriod * p.vibrato;
+		vibraTime[i] = 0;
+
+		time[i] = 1;
+		stage[i] = 0;
+
+		timestamp[i] = start;
+
+		float l = Synth.getAdjustedLevel(loud);
+		leftOut[i] = l * (1 - chan) * 0.5f;
+		rightOut[i] = l * (1 + chan) * 0.5f;
+	}
+
+	/**
+	 * generate the active voices into a buffer
+	 * buffer will be summed, not overwritten, so wipe it
+	 *
+	 * @param buffer interleaved stereo staging buffer
+	 * @param now time in decimal seconds at start of buffer
+	 */
+	public void sample(float[] buffer, float now) {
+		int frames = buffer.length / 2;
+		for (int b0 = 0; b0 < frames && count > 0; b0 += BlockLength) {
+			int b1 = Math.min(b0 + BlockLength, frames);
+			for (int i = 0; i < count; i++) {
+				// offset is how far into the buffer the voice starts up
+				// (counted in samples, as Synth.sample does)
+				float dt = timestamp[i] - now;
+				int f = Math.max(b0, dt > 0 ? (int)(sampleRate * dt) / 2 : 0);
+				if (f < b1 && !sampleVoice(i, buffer, f, b1)) {
+					remove(i--);
+				}
+			}
+		}
+	}
+
+	/**
+	 * generate one voice over a range of frames
+	 * @param i voice index
+	 * @param buffer interleaved stereo staging buffer
+	 * @param f0 first frame
+	 * @param f1 frame following the range
+	 * @return true if the voice is still active
+	 */
+	private boolean sampleVoice(int i, float[] buffer, int f0, int f1) {
+		while (f0 < f1) {
+			// if we're at the end of the current stage
+			if (time[i] >= 1 && !nextStage(i)) {
+				return false;
+			}
+
+			// frames remaining before the stage ends
+			float left = (1 - time[i]) / rate[i];
+			int n = left < f1 - f0 ? Math.max(1, (int) Math.ceil(left)) : f1 - f0;
+
+			if (controlPeriod > 1) {
+				sampleControlled(i, buffer, f0, n);
+				// rounding mustn't hold the stage over for an extra frame
+				if (left < f1 - f0 && time[i] < 1) {
+					time[i] = 1;
+				}
+			} else {
+				sampleExact(i, buffer, f0, n);
+			}
+			f0 += n;
+		}
+		return true;
+	}
+
+	/**
+	 * generate one voice within a stage, evaluating
+	 * the modulators at every frame
+	 * @param i voice index
+	 * @param buffer interleaved stereo staging buffer
+	 * @param f0 first frame
+	 * @param n number of frames
+	 */
+	private void sampleExact(int i, float[] buffer, int f0, int n) {
+		float[] sine = Synth.getSineWave();
+		int sineMod = sine.length - 1;
+		float[] cosine = Synth.getCosineWave();
+		int cosineMod = cosine.length - 1;
+
+		// load the voice state into locals
+		float[] w0 = wave0[i], w1 = wave1[i];
+		int m0 = waveMod0[i], m1 = waveMod1[i];
+		float l0 = level0[i], l1 = level1[i];
+		float wr0 = waveRate0[i], wr1 = waveRate1[i];
+		float wt0 = waveTime0[i], wt1 = waveTime1[i];
+		float tr = tremoRate[i], tt = tremoTime[i];
+		float vr = vibraRate[i], vt = vibraTime[i];
+		float lo = leftOut[i], ro = rightOut[i];
+		float t = time[i], r = rate[i];
+
+		for (int k = 2 * f0, kl = 2 * (f0 + n); k < kl; k += 2) {
+			// get the vibrato function
+			float v = Synth.VibratoLevel * sine[(int)(vt) & sineMod];
+			vt += vr;
+
+			// interpolate the waveform value
+			float s0 = l0 * w0[(int)(wt0) & m0];
+			float s1 = l1 * w1[(int)(wt1) & m1];
+			float s = (1 - t) * s0 + t * s1;
+			wt0 += (wr0 + v * wr0);
+			wt1 += (wr1 + v * wr1);
+
+			// apply the tremolo function
+			float w = cosine[(int)(tt) & cosineMod] * s;
+			tt += tr;
+			t += r;
+
+			buffer[k] += w * lo;
+			buffer[k + 1] += w * ro;
+		}
+
+		// store the voice state
+		waveTime0[i] = wt0;
+		waveTime1[i] = wt1;
+		tremoTime[i] = tt;
+		vibraTime[i] = vt;
+		time[i] = t;
+	}
+
+	/**
+	 * generate one voice within a stage, evaluating
+	 * the modulators once per control period and
+	 * ramping linearly between control points
+	 *
+	 * the tremolo, stage crossfade, and channel levels
+	 * fold into one gain per wave, and the vibrato into
+	 * the phase increment, so each frame costs two table
+	 * reads and a handful of multiply-adds
+	 *
+	 * @param i voice index
+	 * @param buffer interleaved stereo staging buffer
+	 * @param f0 first frame
+	 * @param n number of frames
+	 */
+	private void sampleControlled(int i, float[] buffer, int f0, int n) {
+		float[] sine = Synth.getSineWave();
+		int sineMod = sine.length - 1;
+		float[] cosine = Synth.getCosineWave();
+		int cosineMod = cosine.length - 1;
+
+		// load the voice state into locals
+		float[] w0 = wave0[i], w1 = wave1[i];
+		int m0 = waveMod0[i], m1 = waveMod1[i];
+		float l0 = level0[i], l1 = level1[i];
+		float wr0 = waveRate0[i], wr1 = waveRate1[i];
+		float wt0 = waveTime0[i], wt1 = waveTime1[i];
+		float tr = tremoRate[i], tt = tremoTime[i];
+		float vr = vibraRate[i], vt = vibraTime[i];
+		float lo = leftOut[i], ro = rightOut[i];
+		float t = time[i], r = rate[i];
+
+		// modulators at the first control point
+		float va = Synth.VibratoLevel * sine[(int)(vt) & sineMod];
+		float ca = cosine[(int)(tt) & cosineMod];
+
+		int k = 2 * f0;
+		while (n > 0) {
+			int c = Math.min(controlPeriod, n);
+			float over = 1f / c;
+
+			// modulators at the next control point
+			float ct = c * r;
+			vt += c * vr;
+			tt += c * tr;
+			float vb = Synth.VibratoLevel * sine[(int)(vt) & sineMod];
+			float cb = cosine[(int)(tt) & cosineMod];
+
+			// wave gains and phase increments, with their ramps
+			float g0 = ca * (1 - t) * l0;
+			float g1 = ca * t * l1;
+			float dg0 = (cb * (1 - t - ct) * l0 - g0) * over;
+			float dg1 = (cb * (t + ct) * l1 - g1) * over;
+			float p0 = wr0 + va * wr0, p1 = wr1 + va * wr1;
+			float dv = (vb - va) * over;
+			float dp0 = dv * wr0, dp1 = dv * wr1;
+
+			for (int kl = k + 2 * c; k < kl; k += 2) {
+				float w = g0 * w0[(int)(wt0) & m0] + g1 * w1[(int)(wt1) & m1];
+				wt0 += p0;
+				wt1 += p1;
+				p0 += dp0;
+				p1 += dp1;
+				g0 += dg0;
+				g1 += dg1;
+
+				buffer[k] += w * lo;
+				buffer[k + 1] += w * ro;
+			}
+
+			t += ct;
+			va = vb;
+			ca = cb;
+			n -= c;
+		}
+
+		// store the voice state
+		waveTime0[i] = wt0;
+		waveTime1[i] = wt1;
+		tremoTime[i] = tt;
+		vibraTime[i] = vt;
+		time[i] = t;
+	}
+
+	/**
+	 * advance a voice to its next stage
+	 * @param i voice index
+	 * @return false if the voice has finished
+	 */
+	private boolean nextStage(int i) {
+		VoicePatch p = patch[i];
+		int from = stage[i];
+
+		// if both stages are silence, we're done
+		if (from >= p.stageCount) {
+			return false;
+		}
+
+		// select the stages to mix between
+		int stage0 = from;
+		int stage1 = p.entry(from + 1);
+
+		// reset time and rate
+		rate[i] = samplePeriod * p.timeRate[stage0];
+		time[i] = 0;
+
+		// set waveform/level to interpolate from
+		wave0[i] = p.wave[stage0];
+		level0[i] = p.level[stage0];
+		waveRate0[i] = p.waveScale[stage0] * baseRate[i];
+		waveMod0[i] = wave0[i].length - 1;
+		waveTime0[i] = waveTime1[i];
+
+		// set waveform/level to interpolate to
+		wave1[i] = p.wave[stage1];
+		level1[i] = p.level[stage1];
+		waveRate1[i] = p.waveScale[stage1] * baseRate[i];
+		waveMod1[i] = wave1[i].length - 1;
+		waveTime1[i] = 0;
+
+		stage[i] = from + 1;
+		return true;
+	}
+
+	/**
+	 * remove a finished voice, moving the last voice into its slot
+	 * @param i voice index
+	 */
+	private void remove(int i) {
+		int j = --count;
+		patch[i] = patch[j];
+		stage[i] = stage[j];
+		time[i] = time[j];
+		rate[i] = rate[j];
+		wave0[i] = wave0[j];
+		wave1[i] = wave1[j];
+		waveMod0[i] = waveMod0[j];
+		waveMod1[i] = waveMod1[j];
+		level0[i] = level0[j];
+		level1[i] = level1[j];
+		baseRate[i] = baseRate[j];
+		waveRate0[i] = waveRate0[j];
+		waveTime0[i] = waveTime0[j];
+		waveRate1[i] = waveRate1[j];
+		waveTime1[i] = waveTime1[j];
+		tremoRate[i] = tremoRate[j];
+		tremoTime[i] = tremoTime[j];
+		vibraRate[i] = vibraRate[j];
+		vibraTime[i] = vibraTime[j];
+		leftOut[i] = leftOut[j];
+		rightOut[i] = rightOut[j];
+		timestamp[i] = timestamp[j];
+		patch[j] = null;
+		wave0[j] = wave1[j] = null;
+	}
+
+	/**
+	 * (re)allocate state arrays, preserving active voices
+	 * @param n capacity in voices
+	 */
+	private void allocate(int n) {
+		patch = patch == null ? new VoicePatch[n] : Arrays.copyOf(patch, n);
+		stage = stage == null ? new int[n] : Arrays.copyOf(stage, n);
+		time = grow(time, n);
+		rate = grow(rate, n);
+		wave0 = wave0 == null ? new float[n][] : Arrays.copyOf(wave0, n);
+		wave1 = wave1 == null ? new float[n][] : Arrays.copyOf(wave1, n);
+		waveMod0 = waveMod0 == null ? new int[n] : Arrays.copyOf(waveMod0, n);
+		waveMod1 = waveMod1 == null ? new int[n] : Arrays.copyOf(waveMod1, n);
+		level0 = grow(level0, n);
+		level1 = grow(level1, n);
+		baseRate = grow(baseRate, n);
+		waveRate0 = grow(waveRate0, n);
+		waveTime0 = grow(waveTime0, n);
+		waveRate1 = grow(waveRate1, n);
+		waveTime1 = grow(waveTime1, n);
+		tremoRate = grow(tremoRate, n);
+		tremoTime = grow(tremoTime, n);
+		vibraRate = grow(vibraRate, n);
+		vibraTime = grow(vibraTime, n);
+		leftOut = grow(leftOut, n);
+		rightOut = grow(rightOut, n);
+		timestamp = grow(timestamp, n);
+	}
+
+	/**
+	 * grow a state array
+	 * @param a array, or null
+	 * @param n new length
+	 * @return resized array
+	 */
+	private static float[] grow(float[] a, int n) {
+		return a == null ? new float[n] : Arrays.copyOf(a, n);
+	}
+}
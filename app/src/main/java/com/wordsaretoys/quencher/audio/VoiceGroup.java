@@ -0,0 +1,246 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+
+/**
+ * voice bank split into partitions that can render
+ * on a small fixed pool of threads
+ *
+ * new voices go to the least loaded partition. in
+ * parallel mode, each buffer is rendered by waking
+ * the workers, rendering the first partition on the
+ * calling thread, waiting for the workers to finish,
+ * then summing their staging buffers into the output.
+ * with few voices, or parallel mode off, everything
+ * renders on the calling thread
+ *
+ * all methods must be called from the same thread
+ */
+public class VoiceGroup {
+
+	// most worker threads, not counting the caller
+	static final int MaxWorkers = 3;
+
+	// fewest voices worth splitting across threads
+	static final int ParallelThreshold = 8;
+
+	/**
+	 * render thread for one partition
+	 */
+	class Worker implements Runnable {
+
+		// worker thread
+		final Thread thread;
+
+		// partition index
+		final int index;
+
+		// staging buffer for this partition
+		float[] stager = new float[0];
+
+		/**
+		 * ctor
+		 * @param i partition index
+		 */
+		Worker(int i) {
+			index = i;
+			thread = new Thread(this, "voice worker " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			int seen = 0;
+			while (true) {
+				while (generation == seen) {
+					LockSupport.park(this);
+				}
+				seen = generation;
+				if (stager.length != jobLength) {
+					stager = new float[jobLength];
+				} else {
+					Arrays.fill(stager, 0);
+				}
+				banks[index].sample(stager, jobTime);
+				// last one out wakes the caller
+				if (pending.decrementAndGet() == 0) {
+					LockSupport.unpark(caller);
+				}
+			}
+		}
+	}
+
+	// voice partitions; the first renders on the calling thread
+	private VoiceBank[] banks;
+
+	// worker threads, created on first parallel render
+	private Worker[] workers;
+
+	// true if partitions render in parallel
+	private boolean parallel;
+
+	// job counter; workers render when it changes
+	private volatile int generation;
+
+	// start time and length of the current job
+	private float jobTime;
+	private int jobLength;
+
+	// workers yet to finish the current job
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// thread waiting on the current job
+	private volatile Thread caller;
+
+	/**
+	 * ctor
+	 * @param s sample rate in Hz
+	 */
+	public VoiceGroup(int s) {
+		this(s, 1 + Math.max(0, Math.min(MaxWorkers, 
+				Runtime.getRuntime().availableProcessors() - 1)));
+	}
+
+	/**
+	 * ctor
+	 * @param s sample rate in Hz
+	 * @param n number of partitions
+	 */
+	VoiceGroup(int s, int n) {
+		banks = new VoiceBank[n];
+		for (int i = 0; i < banks.length; i++) {
+			banks[i] = new VoiceBank(s);
+		}
+	}
+
+	/**
+	 * change the sample rate
+	 * drops all voices
+	 *
+	 * @param s sample rate in Hz
+	 */
+	public void setSampleRate(int s) {
+		int period = getControlPeriod();
+		for (int i = 0; i < banks.length; i++) {
+			banks[i] = new VoiceBank(s);
+			banks[i].setControlPeriod(period);
+		}
+	}
+
+	/**
+	 * enable or disable parallel rendering
+	 * @param b true to render partitions in parallel
+	 */
+	public void setParallel(boolean b) {
+		parallel = b;
+	}
+
+	/**
+	 * get modulator update period
+	 * @return frames between control points
+	 */
+	public int getControlPeriod() {
+		return banks[0].getControlPeriod();
+	}
+
+	/**
+	 * set modulator update period
+	 * @param p frames between control points (1 = every frame)
+	 */
+	public void setControlPeriod(int p) {
+		for (VoiceBank bank : banks) {
+			bank.setControlPeriod(p);
+		}
+	}
+
+	/**
+	 * get number of active voices
+	 * @return voice count
+	 */
+	public int getCount() {
+		int n = 0;
+		for (VoiceBank bank : banks) {
+			n += bank.getCount();
+		}
+		return n;
+	}
+
+	/**
+	 * drop all voices
+	 */
+	public void clear() {
+		for (VoiceBank bank : banks) {
+			bank.clear();
+		}
+	}
+
+	/**
+	 * add a voice to the least loaded partition
+	 * @param p compiled voice data
+	 * @param start time in decimal seconds of voice start
+	 * @param freq frequency in Hz
+	 * @param loud relative loudness (0..1)
+	 * @param chan channel pan (-1..1)
+	 */
+	public void add(VoicePatch p, float start, float freq, float loud, float chan) {
+		VoiceBank least = banks[0];
+		for (int i = 1; i < banks.length; i++) {
+			if (banks[i].getCount() < least.getCount()) {
+				least = banks[i];
+			}
+		}
+		least.add(p, start, freq, loud, chan);
+	}
+
+	/**
+	 * generate the active voices into a buffer
+	 * buffer will be summed, not overwritten, so wipe it
+	 *
+	 * @param buffer interleaved stereo staging buffer
+	 * @param now time in decimal seconds at start of buffer
+	 */
+	public void sample(float[] buffer, float now) {
+		if (!parallel || banks.length == 1 || getCount() < ParallelThreshold) {
+			for (VoiceBank bank : banks) {
+				bank.sample(buffer, now);
+			}
+			return;
+		}
+
+		if (workers == null) {
+			workers = new Worker[banks.length - 1];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(i + 1);
+			}
+		}
+
+		// publish the job; the volatile write releases it to the workers
+		jobTime = now;
+		jobLength = buffer.length;
+		caller = Thread.currentThread();
+		pending.set(workers.length);
+		generation++;
+		for (Worker w : workers) {
+			LockSupport.unpark(w.thread);
+		}
+
+		banks[0].sample(buffer, now);
+
+		// wait for the workers, then sum their output
+		while (pending.get() > 0) {
+			LockSupport.park(this);
+		}
+		for (Worker w : workers) {
+			float[] s = w.stager;
+			for (int i = 0, il = buffer.length; i < il; i++) {
+				buffer[i] += s[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.wordsaretoys.quencher.audio;
+
+import com.wordsaretoys.quencher.data.Stage;
+import com.wordsaretoys.quencher.data.Stage.Type;
+import com.wordsaretoys.quencher.data.Voice;
+
+/**
+ * immutable, compiled form of a voice for use by
+ * the synthesizers on the audio thread
+ *
+ * all per-stage values that don't depend on the
+ * note are worked out once, so a note-on or stage
+ * transition is a handful of array reads
+ *
+ * stage arrays carry one extra entry past the last
+ * stage that represents silence
+ */
+public final class VoicePatch {
+
+	// number of stages, not counting the silent entry
+	public final int stageCount;
+
+	// tremolo and vibrato frequencies in Hz
+	public final float tremolo, vibrato;
+
+	// reciprocal of stage duration in seconds
+	public final float[] timeRate;
+
+	// adjusted, normalized stage level
+	public final float[] level;
+
+	// wave length scaled by any noise rate factor
+	public final float[] waveScale;
+
+	// wave buffer for each stage
+	public final float[][] wave;
+
+	// total duration of all stages in seconds
+	public final float duration;
+
+	// hash of patch contents
+	public final long hash;
+
+	/**
+	 * ctor, compiles a voice
+	 * @param v voice object
+	 */
+	public VoicePatch(Voice v) {
+		int n = v.getStageCount();
+		stageCount = n;
+		tremolo = v.getTremolo();
+		vibrato = v.getVibrato();
+
+		timeRate = new float[n + 1];
+		level = new float[n + 1];
+		waveScale = new float[n + 1];
+		wave = new float[n + 1][];
+
+		float lf = 0;
+		for (int i = 0; i < n; i++) {
+			lf = Math.max(lf, v.getStage(i).getLevel());
+		}
+		float levelFactor = 1f / lf;
+
+		float d = 0;
+		long h = StemCache.hash(StemCache.HashSeed, tremolo);
+		h = StemCache.hash(h, vibrato);
+		for (int i = 0; i <= n; i++) {
+			Stage stage = i < n ? v.getStage(i) : Synth.getSilence();
+			float[] w = stage.getWaveBuffer();
+			timeRate[i] = 1f / stage.getTime();
+			level[i] = Synth.getAdjustedLevel(levelFactor * stage.getLevel());
+			waveScale[i] = w.length;
+			if (stage.getType() == Type.Noise) {
+				waveScale[i] *= Synth.getAdjustedNoise(stage.getNoiseFactor());
+			}
+			wave[i] = w;
+			if (i < n) {
+				d += stage.getTime();
+			}
+			h = StemCache.hash(h, timeRate[i]);
+			h = StemCache.hash(h, level[i]);
+			h = StemCache.hash(h, waveScale[i]);
+			for (int j = 0; j < w.length; j++) {
+				h = StemCache.hash(h, w[j]);
+			}
+		}
+		duration = d;
+		hash = h;
+	}
+
+	/**
+	 * get index into stage arrays, mapping any stage
+	 * past the end of the voice to silence
+	 * @param i stage index
+	 * @return array index
+	 */
+	public int entry(int i) {
+		return i < stageCount ? i : stageCount;
+	}
+}
@@ -0,0 +1,138 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+
+import com.wordsaretoys.quencher.R;
+import com.wordsaretoys.quencher.common.Notifier;
+
+/**
+ * renders a score into a 32-bit float WAV file
+ *
+ * the mix is written as it comes out of the synth,
+ * with no conversion to 16-bit, so it keeps its full
+ * resolution for later mastering
+ */
+public class Wav extends Export {
+
+	// file extension
+	static String FileExt = ".wav";
+
+	// length of the RIFF header in bytes
+	// (RIFF, 18-byte fmt, fact, and data chunk headers)
+	static final int HeaderLength = 58;
+
+	// bytes per stereo float frame
+	static final int FrameBytes = 8;
+
+	// WAVE format tag for IEEE float samples
+	static final short FormatFloat = 3;
+
+	/**
+	 * ctor
+	 * @param c activity context
+	 */
+	public Wav(Context c) {
+		super(c);
+	}
+
+	@Override
+	protected String getFileExt() {
+		return FileExt;
+	}
+
+	@Override
+	protected int getStartText() {
+		return R.string.wavRendering;
+	}
+
+	@Override
+	protected void write() {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "rw");
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			// leave room for the header, written once the length is known
+			channel.position(HeaderLength);
+			ByteBuffer bytes = ByteBuffer.allocateDirect(0)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			long frames = 0;
+
+			do {
+				float[] source = audio.generateNextFloatBuffer();
+				if (bytes.capacity() < source.length * 4) {
+					bytes = ByteBuffer.allocateDirect(source.length * 4)
+							.order(ByteOrder.LITTLE_ENDIAN);
+				}
+				bytes.clear();
+				bytes.asFloatBuffer().put(source);
+				bytes.limit(source.length * 4);
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				frames += source.length / 2;
+				updateProgress();
+			} while (audio.isPlaying() || audio.isCalling());
+
+			channel.position(0);
+			ByteBuffer header = createHeader(frames);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			file.close();
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException ee) {
+				}
+			}
+			fail(Notifier.WavWriteFailed);
+			return;
+		}
+
+		showComplete(R.string.wavComplete);
+	}
+
+	/**
+	 * build the RIFF header for a float stereo stream
+	 * 
+	 * non-PCM formats need the extended fmt chunk
+	 * and a fact chunk holding the frame count
+	 * @param frames number of stereo frames in the file
+	 * @return header bytes, ready to write
+	 */
+	static ByteBuffer createHeader(long frames) {
+		int dataLength = (int)(frames * FrameBytes);
+		ByteBuffer h = ByteBuffer.allocate(HeaderLength)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		h.put("RIFF".getBytes());
+		h.putInt(HeaderLength - 8 + dataLength);
+		h.put("WAVE".getBytes());
+		h.put("fmt ".getBytes());
+		h.putInt(18);
+		h.putShort(FormatFloat);
+		h.putShort((short) 2);
+		h.putInt(SampleRate);
+		h.putInt(SampleRate * FrameBytes);
+		h.putShort((short) FrameBytes);
+		h.putShort((short) 32);
+		h.putShort((short) 0);
+		h.put("fact".getBytes());
+		h.putInt(4);
+		h.putInt((int) frames);
+		h.put("data".getBytes());
+		h.putInt(dataLength);
+		h.flip();
+		return h;
+	}
+}
@@ -0,0 +1,125 @@
+package com.wordsaretoys.quencher.audio;
+
+import java.util.Random;
+
+import com.wordsaretoys.quencher.data.Stage;
+
+/**
+ * base wave buffers shared by all synthesizers
+ *
+ * the tables are generated once per process, on
+ * first use, and never written again; callers must
+ * treat the returned arrays as read-only
+ */
+public enum Wavetables {
+
+	// singleton instance
+	INSTANCE;
+
+	// table lengths (powers of two for masking)
+	static final int SineLength = 8192;
+	static final int CosineLength = 8192;
+	static final int SawtoothLength = 8192;
+	static final int NoiseLength = 65536;
+
+	// fixed seed, so noise is the same on every run
+	static final long NoiseSeed = 0x5EEDL;
+
+	// base wave buffers
+	private final float[] sine = new float[SineLength];
+	private final float[] cosine = new float[CosineLength];
+	private final float[] sawtooth = new float[SawtoothLength];
+	private final float[] noise = new float[NoiseLength];
+	private final float[] square = { 1, -1 };
+
+	// dummy stage object for mixing silence
+	private final Stage silence;
+
+	/**
+	 * generate base wave buffers
+	 */
+	private Wavetables() {
+		for (int i = 0; i < SineLength; i++) {
+			float t = (float) i / (float) SineLength;
+			sine[i] = (float) Math.sin(2 * Math.PI * t);
+		}
+
+		for (int i = 0; i < CosineLength; i++) {
+			float t = (float) i / (float) CosineLength;
+			cosine[i] = (float) Math.cos(2 * Math.PI * t);
+		}
+
+		Random random = new Random(NoiseSeed);
+		float r = 0;
+		for (int i = 0; i < NoiseLength; i++) {
+			noise[i] = (float) Math.sin(r);
+			r += (2 * random.nextFloat() - 1);
+		}
+
+		for (int i = 0; i < SawtoothLength; i++) {
+			float t = (float) i / (float) SawtoothLength;
+			if (t < 0.25f) {
+				sawtooth[i] = t * 4;
+			} else if (t >= 0.25f && t < 0.5f) {
+				float mu = (t - 0.25f) * 4;
+				sawtooth[i] = 1 - mu;
+			} else if (t >= 0.5f && t < 0.75f) {
+				float mu = (t - 0.5f) * 4;
+				sawtooth[i] = -mu;
+			} else {
+				float mu = (t - 0.75f) * 4;
+				sawtooth[i] = mu - 1;
+			}
+		}
+
+		silence = new Stage(null);
+	}
+
+	/**
+	 * get sinewave buffer
+	 * @return sine wave buffer
+	 */
+	public float[] getSine() {
+		return sine;
+	}
+
+	/**
+	 * get cosine wave buffer
+	 * @return cosine wave buffer
+	 */
+	public float[] getCosine() {
+		return cosine;
+	}
+
+	/**
+	 * get noise wave buffer
+	 * @return noise wave buffer
+	 */
+	public float[] getNoise() {
+		return noise;
+	}
+
+	/**
+	 * get square wave buffer
+	 * @return square wave buffer
+	 */
+	public float[] getSquare() {
+		return square;
+	}
+
+	/**
+	 * get sawtooth wave buffer
+	 * @return sawtooth wave buffer
+	 */
+	public float[] getSawtooth() {
+		return sawtooth;
+	}
+
+	/**
+	 * get silent stage object
+	 * @return stage that mixes silence
+	 */
+	public Stage getSilence() {
+		return silence;
+	}
+}
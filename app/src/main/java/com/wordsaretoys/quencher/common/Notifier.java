@@ -1,10 +1,21 @@
 package com.wordsaretoys.quencher.common;
 
-import java.util.ArrayList;
-
 import android.os.Handler;
 import android.os.Message;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
+/**
+ * delivers app events to listeners on the main thread
+ *
+ * listeners subscribe to the event types they handle,
+ * so dispatch touches only interested listeners. lists
+ * are copied on change, so a listener can register or
+ * unregister from inside its handler. state-change
+ * events with no arguments are coalesced: sending one
+ * while a copy is still waiting in the queue does
+ * nothing, so events keep the order they were sent in
+ */
 public enum Notifier implements Handler.Callback {
 
 	// singleton instance
@@ -19,6 +30,7 @@ public enum Notifier implements Handler.Callback {
 	public static final int SetCursor = 106;
 	public static final int SetNote = 107;
 	public static final int ScoreReady = 108;
+	public static final int ScoreProgress = 109;
 	
 	// voice editor messages
 	public static final int NewVoice = 200;
@@ -35,7 +47,6 @@ public enum Notifier implements Handler.Callback {
 	// audio engine messages
 	public static final int AudioPlaying = 400;
 	public static final int AudioStopped = 401;
-	public static final int AudioMarker = 402;
 	public static final int AudioOff = 403;
 	
 	// audio alert messages
@@ -45,12 +56,19 @@ public enum Notifier implements Handler.Callback {
 	public static final int StorageSaveFailed = 600;
 	public static final int StorageDeleteFailed = 601;
 	
+	// storage progress messages
+	public static final int StorageUpgrading = 610;
+	
 	// mp4 alert messages
 	public static final int Mp4WriteFailed = 700;
+	public static final int WavWriteFailed = 701;
 	
 	// log tag
 	static final String TAG = "Notifier";
 	
+	// empty listener list
+	static final NotificationListener[] None = new NotificationListener[0];
+	
 	/**
 	 * callback listener interface
 	 */
@@ -61,15 +79,29 @@ public enum Notifier implements Handler.Callback {
 	// handler
 	private Handler handler;
 	
-	// listener collection
-	private ArrayList<NotificationListener> listeners;
+	// listeners by event type, replaced on change
+	private SparseArray<NotificationListener[]> listeners;
+	
+	// listeners for every event type, replaced on change
+	private NotificationListener[] everything;
+	
+	// true for each coalesced event type, by type
+	private SparseBooleanArray coalesced;
 	
 	/**
 	 * ctor
 	 */
 	private Notifier() {
 		handler = new Handler(this);
-		listeners = new ArrayList<NotificationListener>();
+		listeners = new SparseArray<NotificationListener[]>();
+		everything = new NotificationListener[0];
+		// events that only say something changed
+		coalesced = new SparseBooleanArray();
+		for (int what : new int[] {
+				ScoreChange, CursorChange, SelectionChange, ScoreProgress,
+				VoiceChange, StageCursorChange, ScaleChange, ToneCursorChange }) {
+			coalesced.put(what, true);
+		}
 	}
 	
 	/**
@@ -80,27 +112,83 @@ public enum Notifier implements Handler.Callback {
 	
 	/**
 	 * register for events
+	 * main thread only
+	 * 
 	 * @param l listener object
+	 * @param what event types to receive; none means all
 	 */
-	public void register(NotificationListener l) {
-		listeners.add(l);
+	public void register(NotificationListener l, int... what) {
+		if (what.length == 0) {
+			everything = add(everything, l);
+			return;
+		}
+		for (int w : what) {
+			listeners.put(w, add(listeners.get(w, None), l));
+		}
 	}
 	
 	/**
 	 * unregister from events
+	 * main thread only
+	 * 
 	 * @param l listener object
 	 */
 	public void unregister(NotificationListener l) {
-		listeners.remove(l);
+		everything = remove(everything, l);
+		for (int i = 0, il = listeners.size(); i < il; i++) {
+			listeners.setValueAt(i, remove(listeners.valueAt(i), l));
+		}
 	}
 
 	@Override
 	public boolean handleMessage(Message msg) {
-		for (NotificationListener l : listeners) {
+		for (NotificationListener l : listeners.get(msg.what, None)) {
+			l.handleMessage(msg);
+		}
+		for (NotificationListener l : everything) {
 			l.handleMessage(msg);
 		}
 		return true;
 	}
+	
+	/**
+	 * copy a listener list with one more listener
+	 * @param list listener list
+	 * @param l listener to add
+	 * @return new list, or the old one if it had the listener
+	 */
+	private static NotificationListener[] add(NotificationListener[] list, NotificationListener l) {
+		for (NotificationListener m : list) {
+			if (m == l) {
+				return list;
+			}
+		}
+		NotificationListener[] copy = new NotificationListener[list.length + 1];
+		System.arraycopy(list, 0, copy, 0, list.length);
+		copy[list.length] = l;
+		return copy;
+	}
+	
+	/**
+	 * copy a listener list without a listener
+	 * @param list listener list
+	 * @param l listener to remove
+	 * @return new list, or the old one if it lacked the listener
+	 */
+	private static NotificationListener[] remove(NotificationListener[] list, NotificationListener l) {
+		for (int i = 0; i < list.length; i++) {
+			if (list[i] == l) {
+				if (list.length == 1) {
+					return None;
+				}
+				NotificationListener[] copy = new NotificationListener[list.length - 1];
+				System.arraycopy(list, 0, copy, 0, i);
+				System.arraycopy(list, i + 1, copy, i, copy.length - i);
+				return copy;
+			}
+		}
+		return list;
+	}
 
 	/**
 	 * send a message to all customers
@@ -110,6 +198,11 @@ public enum Notifier implements Handler.Callback {
 	 * @param obj object reference
 	 */
 	public void send(int what, int arg0, int arg1, Object obj) {
+		// a waiting copy will report the newer state anyway
+		if (coalesced.get(what) && obj == null && arg0 == 0 && arg1 == 0 &&
+				handler.hasMessages(what)) {
+			return;
+		}
 		Message msg = Message.obtain(handler, what, arg0, arg1, obj);
 		handler.sendMessage(msg);
 	}
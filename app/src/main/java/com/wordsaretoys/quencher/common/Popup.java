@@ -294,6 +294,9 @@ public class Popup {
 		case Notifier.Mp4WriteFailed:
 			resId = R.string.mp4WriteFailed;
 			break;
+		case Notifier.WavWriteFailed:
+			resId = R.string.wavWriteFailed;
+			break;
 		}
 		return WarningDialog.newInstance(resId);
 	}
@@ -2,10 +2,14 @@ package com.wordsaretoys.quencher.common;
 
 import android.annotation.TargetApi;
 import android.app.Application;
+import android.database.Cursor;
 import android.os.Build;
 import android.os.StrictMode;
 
 import com.wordsaretoys.quencher.audio.Engine;
+import com.wordsaretoys.quencher.data.Scale;
+import com.wordsaretoys.quencher.data.Score;
+import com.wordsaretoys.quencher.data.Voice;
 
 /**
  * manages object lifetime/startup consistently
@@ -19,6 +23,8 @@ public class QuencherApp extends Application {
 	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
 	public void onCreate() {
 		super.onCreate();
+		StartupTrace trace = StartupTrace.INSTANCE;
+		trace.start();
 
 		if (DEVELOPER_MODE) {
 	        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
@@ -39,8 +45,40 @@ public class QuencherApp extends Application {
 		// insure these objects are created
 		// in the UI thread context
 		Notifier.INSTANCE.onCreate();
+		long t = trace.begin("storage");
 		Storage.INSTANCE.onCreate(this);
+		trace.end("storage", t);
+		// audio starts up on first playback
 		Engine.INSTANCE.onCreate(this);
+		
+		if (Storage.INSTANCE.getStartupException() == null) {
+			prewarm();
+		}
+	}
+	
+	/**
+	 * open the database and run the catalog queries
+	 * in the background while the first activity inflates
+	 */
+	private void prewarm() {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				StartupTrace trace = StartupTrace.INSTANCE;
+				long t = trace.begin("prewarm");
+				Cursor[] catalogs = {
+					Score.getCatalog(), 
+					Voice.getCatalog(), 
+					Scale.getCatalog()
+				};
+				// filling the cursor window runs the query
+				for (Cursor c : catalogs) {
+					c.getCount();
+					c.close();
+				}
+				trace.end("prewarm", t);
+			}
+		}, "prewarm").start();
 	}
 	
 }
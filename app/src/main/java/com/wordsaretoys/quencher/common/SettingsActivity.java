@@ -50,6 +50,30 @@ public class SettingsActivity extends Activity {
 					new RangeCheckListener(
 							1, 1000, 
 							res.getString(R.string.prefsAudioLatencyRange)));
+			
+			Preference stemCache = findPreference("pref_audio_stem_cache");
+			stemCache.setOnPreferenceChangeListener(
+					new RangeCheckListener(
+							0, 512, 
+							res.getString(R.string.prefsAudioStemCacheRange)));
+			
+			Preference noteCache = findPreference("pref_audio_note_cache");
+			noteCache.setOnPreferenceChangeListener(
+					new RangeCheckListener(
+							0, 128, 
+							res.getString(R.string.prefsAudioNoteCacheRange)));
+			
+			Preference cacheSize = findPreference("pref_storage_cache_size");
+			cacheSize.setOnPreferenceChangeListener(
+					new RangeCheckListener(
+							256, 65536, 
+							res.getString(R.string.prefsStorageCacheSizeRange)));
+			
+			Preference mmapSize = findPreference("pref_storage_mmap_size");
+			mmapSize.setOnPreferenceChangeListener(
+					new RangeCheckListener(
+							0, 256, 
+							res.getString(R.string.prefsStorageMmapSizeRange)));
 		}
 		
 		class RangeCheckListener implements OnPreferenceChangeListener {
@@ -0,0 +1,96 @@
+package com.wordsaretoys.quencher.common;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * times the phases of app startup, up to the first
+ * frame of the main activity, and logs a summary
+ *
+ * phases may run on any thread; on API 18 and up
+ * they also show up as systrace sections
+ *
+ * uses enum-based singleton pattern
+ */
+public enum StartupTrace {
+
+	INSTANCE;
+
+	final String TAG = "StartupTrace";
+
+	// uptime at start of trace
+	private long origin;
+
+	// phase timings so far
+	private StringBuilder phases = new StringBuilder();
+
+	// time from start to first frame
+	private long startupTime;
+
+	// true once the first frame is reported
+	private boolean finished;
+
+	/**
+	 * start the trace; call once, first thing in app creation
+	 */
+	public synchronized void start() {
+		origin = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * begin a startup phase
+	 * @param phase name of phase
+	 * @return time stamp to pass to end()
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	public long begin(String phase) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.beginSection(phase);
+		}
+		return SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * end a startup phase; call on the thread that began it
+	 * @param phase name of phase
+	 * @param stamp time stamp returned by begin()
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	public void end(String phase, long stamp) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.endSection();
+		}
+		long now = SystemClock.uptimeMillis();
+		synchronized(this) {
+			if (!finished) {
+				phases.append(phase)
+					.append(" ").append(now - stamp).append(" ms")
+					.append(" (done at ").append(now - origin).append(" ms), ");
+			}
+		}
+	}
+
+	/**
+	 * mark the first frame and log the trace
+	 * later calls are ignored
+	 */
+	public synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		startupTime = SystemClock.uptimeMillis() - origin;
+		Log.i(TAG, phases + "first frame at " + startupTime + " ms");
+	}
+
+	/**
+	 * get time from start of trace to first frame
+	 * @return time in ms, or 0 if not reached yet
+	 */
+	public synchronized long getStartupTime() {
+		return startupTime;
+	}
+}
@@ -110,6 +110,7 @@ public abstract class Storable {
 		} finally {
 			db.endTransaction();
 		}
+		onTransactionEnd(ok);
 		return ok;
 	}
 	
@@ -139,8 +140,21 @@ public abstract class Storable {
 		} finally {
 			db.endTransaction();
 		}
+		onTransactionEnd(deleted);
 		return deleted;
 	}
+	
+	/**
+	 * call when a write or delete transaction is over
+	 * 
+	 * state that mirrors the database should only be
+	 * updated here, as a rolled back transaction leaves
+	 * the database as it was
+	 * 
+	 * @param committed true if the transaction was committed
+	 */
+	protected void onTransactionEnd(boolean committed) {
+	}
 
 	public void readFields(Cursor c) {
 		id = c.getLong(c.getColumnIndex(L_ID));
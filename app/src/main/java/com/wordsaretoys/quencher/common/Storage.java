@@ -8,15 +8,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
 
 import com.wordsaretoys.quencher.R;
 
@@ -31,7 +37,17 @@ public enum Storage {
 	INSTANCE;
 
 	final String DbName = "quencher";
-	final int SchemaVersion = 1;
+	
+	// asset holding the seed database
+	final String SeedAsset = "quencher.db";
+	
+	// bytes per transfer when streaming a copy
+	final long CopyChunk = 64 * 1024;
+	final int SchemaVersion = 2;
+	
+	// asset path prefix of schema upgrade scripts
+	// script N upgrades the schema from version N-1 to N
+	final String UpgradeScript = "schema/upgrade";
 	
 	static int AutosaveId = 0;
 	
@@ -43,16 +59,47 @@ public enum Storage {
 		
 		public DatabaseHelper(String name) {
 			super(context, name, null, SchemaVersion);
+			// write-ahead logging lets the connection pool serve
+			// readers (catalogs, score loads) while autosave writes
+			setWriteAheadLoggingEnabled(true);
+		}
+
+		@Override
+		public void onConfigure(SQLiteDatabase db) {
+			// tuning pragmas apply to the primary (write) connection
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+			Resources res = context.getResources();
+			String s;
+			
+			s = prefs.getString(
+					"pref_storage_synchronous", 
+					res.getString(R.string.prefsStorageSynchronousDefault));
+			if (!(s.equals("OFF") || s.equals("NORMAL") || s.equals("FULL"))) {
+				s = "NORMAL";
+			}
+			setPragma(db, "synchronous", s);
+			
+			// negative cache size is in KB rather than pages
+			int kb = getIntPreference(prefs, "pref_storage_cache_size", 
+					res.getString(R.string.prefsStorageCacheSizeDefault), 2048);
+			setPragma(db, "cache_size", String.valueOf(-kb));
+			
+			int mb = getIntPreference(prefs, "pref_storage_mmap_size", 
+					res.getString(R.string.prefsStorageMmapSizeDefault), 16);
+			setPragma(db, "mmap_size", String.valueOf(mb * 1024L * 1024L));
 		}
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
-			// database creation handled elsewhere
+			// database creation handled elsewhere, but
+			// the seed database is unversioned, so bring
+			// it up to date with the current schema
+			migrate(db, 1, SchemaVersion, false);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// no upgrades defined at this point 
+			migrate(db, oldVersion, newVersion, true);
 		}
 		
 	}
@@ -238,6 +285,23 @@ public enum Storage {
 				null, null, order);
 	}
 	
+	/**
+	 * determine if any row in a table matches a selection
+	 * stops at the first match rather than counting them all
+	 * 
+	 * @param table name of table
+	 * @param selectBy name of selecting field
+	 * @param id id to select for
+	 * @return true if at least one row matches
+	 */
+	public boolean exists(String table, String selectBy, long id) {
+		SQLiteDatabase db = getReadableDatabase();
+		String[] args = { String.valueOf(id) };
+		String sql = "SELECT EXISTS (SELECT 1 FROM " + table + 
+				" WHERE " + selectBy + " = ? LIMIT 1)";
+		return DatabaseUtils.longForQuery(db, sql, args) != 0;
+	}
+	
 	/**
 	 * load a storage object from the database by its id
 	 * @param id database id
@@ -301,12 +365,68 @@ public enum Storage {
 		db.delete(table, filter + "= ?", args);
 	}
 	
+	/**
+	 * upgrade the schema one version at a time
+	 * 
+	 * each step runs its script in its own transaction,
+	 * nested within the helper's upgrade transaction, so
+	 * a failure leaves the database at its old version
+	 * 
+	 * @param db writable database
+	 * @param from current schema version
+	 * @param to target schema version
+	 * @param report true if progress notifications are sent
+	 */
+	private void migrate(SQLiteDatabase db, int from, int to, boolean report) {
+		int steps = to - from;
+		for (int v = from + 1; v <= to; v++) {
+			if (report) {
+				Notifier.INSTANCE.send(Notifier.StorageUpgrading, v - from - 1, steps);
+			}
+			runScript(db, UpgradeScript + v);
+		}
+		if (report) {
+			Notifier.INSTANCE.send(Notifier.StorageUpgrading, steps, steps);
+		}
+	}
+	
+	/**
+	 * set a connection pragma
+	 * some pragmas return a row, so use a query
+	 * 
+	 * @param db database connection
+	 * @param name pragma name
+	 * @param value pragma value
+	 */
+	private void setPragma(SQLiteDatabase db, String name, String value) {
+		Cursor c = db.rawQuery("PRAGMA " + name + " = " + value, null);
+		c.moveToFirst();
+		c.close();
+	}
+	
+	/**
+	 * read an integer from a string-valued preference
+	 * @param prefs shared preferences object
+	 * @param key preference key
+	 * @param def default preference string
+	 * @param fallback value if preference is malformed
+	 * @return integer value
+	 */
+	private int getIntPreference(SharedPreferences prefs, String key, String def, int fallback) {
+		try {
+			return Integer.valueOf(prefs.getString(key, def));
+		} catch (Exception e) {
+			return fallback;
+		}
+	}
+	
 	/**
 	 * runs a SQL script from the assets in a transaction
+	 * one statement per line; blank lines and comments ignored
+	 * 
 	 * @param db writable database
 	 * @param scriptName name of asset
 	 */
-	@SuppressWarnings("unused")
 	private void runScript(SQLiteDatabase db, String scriptName) {
 		String sql = "";
 		db.beginTransaction();
@@ -320,6 +440,7 @@ public enum Storage {
 					db.execSQL(sql);
 				}
 			}
+			reader.close();
 			db.setTransactionSuccessful();
 		} catch(IOException e) {
 			throw new RuntimeException(e);
@@ -331,23 +452,50 @@ public enum Storage {
 	}
 	
 	/**
-	 * copy from one file stream to another
-	 * @param i input file stream
+	 * copy from one stream to a file with channel transfers
+	 * @param i input stream
 	 * @param o output file stream
 	 * @return true if copy succeeded
 	 */
-	private boolean copyStream(InputStream i, OutputStream o) {
-	    byte[] buf = new byte[1024];
-	    int len;
-	    try {
-		    while ((len = i.read(buf)) > 0) {
-		        o.write(buf, 0, len);
-		    }
-	    } catch (IOException e) {
-	    	e.printStackTrace();
-	    	return false;
-	    }
-	    return true;
+	private boolean copyStream(InputStream i, FileOutputStream o) {
+		try {
+			if (i instanceof FileInputStream) {
+				FileChannel in = ((FileInputStream) i).getChannel();
+				transfer(in, 0, in.size(), o.getChannel());
+			} else {
+				ReadableByteChannel in = Channels.newChannel(i);
+				FileChannel out = o.getChannel();
+				long pos = 0, n;
+				while ((n = out.transferFrom(in, pos, CopyChunk)) > 0) {
+					pos += n;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * copy a region of one file channel to another
+	 * file-to-file transfers can stay in the kernel
+	 * 
+	 * @param in source channel
+	 * @param start offset in source
+	 * @param length number of bytes to copy
+	 * @param out destination channel
+	 */
+	private void transfer(FileChannel in, long start, long length, FileChannel out) 
+			throws IOException {
+		long pos = 0;
+		while (pos < length) {
+			long n = in.transferTo(start + pos, length - pos, out);
+			if (n <= 0) {
+				throw new IOException("transfer stalled at " + pos + " of " + length);
+			}
+			pos += n;
+		}
 	}
 	
 	/**
@@ -392,26 +540,43 @@ public enum Storage {
 	 */
 	private boolean copyDatabaseFromAssets() {
 		boolean ok = true;
+		File outFile = context.getDatabasePath(DbName);
+		// make sure database directory exists
+		File dbDir = new File(outFile.getParent());
+		dbDir.mkdirs();
+		
+		AssetFileDescriptor afd = null;
 		InputStream ins = null;
 		FileOutputStream outs = null;
-		
 		try {
-			ins = context.getAssets().open("quencher.db");
-			File outFile = context.getDatabasePath(DbName);
-			// make sure database directory exists
-			File dbDir = new File(outFile.getParent());
-			dbDir.mkdirs();
 			// now create the file itself
 			outs = new FileOutputStream(outFile);
-			ok = copyStream(ins, outs);
+			try {
+				// uncompressed assets can be read as a region of the apk
+				afd = context.getAssets().openFd(SeedAsset);
+			} catch (FileNotFoundException e) {
+				// compressed, so it has to be streamed
+			}
+			if (afd != null) {
+				ins = afd.createInputStream();
+				transfer(((FileInputStream) ins).getChannel(),
+						afd.getStartOffset(), afd.getLength(), outs.getChannel());
+			} else {
+				ins = context.getAssets().open(SeedAsset);
+				ok = copyStream(ins, outs);
+			}
 		} catch(IOException e) {
 			e.printStackTrace();
 			ok = false;
 		} finally {
 			
 			try {
-				ins.close();
-				outs.close();
+				if (ins != null) {
+					ins.close();
+				}
+				if (outs != null) {
+					outs.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 				ok = false;
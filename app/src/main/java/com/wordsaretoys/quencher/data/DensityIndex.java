@@ -0,0 +1,119 @@
+package com.wordsaretoys.quencher.data;
+
+/**
+ * counts of notes per power-of-two block of positions
+ *
+ * each level halves the resolution of the one below,
+ * so any range of positions is counted by summing a
+ * handful of blocks, and adding or removing a note
+ * touches one block per level. the finest blocks are
+ * several positions wide, so counts are to the nearest
+ * finest block
+ */
+public class DensityIndex {
+
+	// log2 of the finest block width, in positions
+	static final int MinLevel = 3;
+
+	// number of levels, enough to cover any int position
+	static final int Levels = 32 - MinLevel;
+
+	// counts by level, then block
+	private int[][] counts = new int[Levels][];
+
+	// total number of notes indexed
+	private int total;
+
+	/**
+	 * count a note
+	 * @param i note position
+	 */
+	public synchronized void add(int i) {
+		change(i, 1);
+	}
+
+	/**
+	 * stop counting a note
+	 * @param i note position
+	 */
+	public synchronized void remove(int i) {
+		change(i, -1);
+	}
+
+	/**
+	 * drop all counts
+	 */
+	public synchronized void clear() {
+		counts = new int[Levels][];
+		total = 0;
+	}
+
+	/**
+	 * get number of notes indexed
+	 * @return note count
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * count the notes in a range of positions
+	 * range ends are widened to the finest blocks
+	 *
+	 * @param from first position
+	 * @param to position after the last
+	 * @return note count
+	 */
+	public synchronized int count(int from, int to) {
+		int a = Math.max(0, from) >> MinLevel;
+		int b = (int)(((long) Math.max(0, to) + (1 << MinLevel) - 1) >> MinLevel);
+		int sum = 0;
+		// climb the levels, taking the odd blocks at each end
+		for (int l = 0; a < b && l < Levels; l++) {
+			if ((a & 1) != 0) {
+				sum += get(l, a++);
+			}
+			if ((b & 1) != 0) {
+				sum += get(l, --b);
+			}
+			a >>= 1;
+			b >>= 1;
+		}
+		return sum;
+	}
+
+	/**
+	 * add to the counts of every block holding a position
+	 * @param i position
+	 * @param d amount to add
+	 */
+	private void change(int i, int d) {
+		if (i < 0) {
+			return;
+		}
+		for (int l = 0; l < Levels; l++) {
+			int b = i >> (MinLevel + l);
+			int[] c = counts[l];
+			if (c == null || b >= c.length) {
+				int[] g = new int[Math.max(b + 1, c == null ? 16 : 2 * c.length)];
+				if (c != null) {
+					System.arraycopy(c, 0, g, 0, c.length);
+				}
+				counts[l] = c = g;
+			}
+			c[b] += d;
+		}
+		total += d;
+	}
+
+	/**
+	 * get the count of a block
+	 * @param l level
+	 * @param b block index
+	 * @return note count
+	 */
+	private int get(int l, int b) {
+		int[] c = counts[l];
+		return (c != null && b < c.length) ? c[b] : 0;
+	}
+}
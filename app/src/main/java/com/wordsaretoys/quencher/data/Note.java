@@ -68,6 +68,21 @@ public class Note extends Storable {
 		pitch = n.pitch;
 	}
 	
+	/**
+	 * set fields read from the database
+	 * does not mark the note as changed
+	 * 
+	 * @param nid database id
+	 * @param i note index
+	 * @param p pitch number
+	 */
+	void load(long nid, int i, int p) {
+		id = nid;
+		index = i;
+		pitch = p;
+		dirty = false;
+	}
+	
 	/**
 	 * get note index in track
 	 * @return note index
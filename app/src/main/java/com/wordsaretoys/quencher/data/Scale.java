@@ -7,10 +7,12 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.RectF;
+import android.util.SparseArray;
 
 import com.wordsaretoys.quencher.R;
 import com.wordsaretoys.quencher.common.Catalogable;
@@ -26,9 +28,10 @@ public class Scale extends Catalogable {
 	
 	// base reference frequency of A4
 	// can be modified in user preferences
-	public static float TuningOctave = 0.75f;
-	public static float TuningReference = 440f;
-	public static float TuningFrequency = 440f;
+	// written on the UI thread, read by snapshot builders
+	public static volatile float TuningOctave = 0.75f;
+	public static volatile float TuningReference = 440f;
+	public static volatile float TuningFrequency = 440f;
 	
 	// starting octave
 	static final int OctaveStart = 1;
@@ -75,6 +78,15 @@ public class Scale extends Catalogable {
 	private float maxLabelWidth = -1;
 	private float maxOctaveWidth = -1;
 	
+	// pre-rendered note labels by box size, then pitch index
+	private SparseArray<Bitmap[]> glyphs = new SparseArray<Bitmap[]>();
+	
+	// box for rendering note labels
+	private RectF glyphRect = new RectF();
+	
+	// count of pitch/label changes, for caches of drawn notes
+	private volatile int revision;
+	
 	// trash pile for deleted tones
 	private ArrayList<Tone> trash;
 	
@@ -250,6 +262,16 @@ public class Scale extends Catalogable {
 		return OctaveLabels[getOctave(i)];
 	}
 	
+	/**
+	 * get change count
+	 * differs whenever labels or pitches have changed
+	 * 
+	 * @return revision number
+	 */
+	public int getRevision() {
+		return revision;
+	}
+	
 	/**
 	 * get index of middle pitch
 	 * @return pitch index
@@ -276,6 +298,8 @@ public class Scale extends Catalogable {
 		// invalidate drawing params
 		maxLabelWidth = -1;
 		maxOctaveWidth = -1;
+		glyphs = new SparseArray<Bitmap[]>();
+		revision++;
 	}
 	
 	@Override
@@ -419,6 +443,10 @@ public class Scale extends Catalogable {
 	 * consistent drawing method for a note
 	 * will render as label<sub>octave</sub> within padded box
 	 * 
+	 * each label is rendered once per box size into an
+	 * alpha bitmap, which is drawn in the paint's color,
+	 * so drawing a note is a single blit
+	 * 
 	 * @param canvas destination canvas for note text
 	 * @param paint text paint object to use
 	 * @param rect rectangle to draw within
@@ -426,6 +454,51 @@ public class Scale extends Catalogable {
 	 * @param note pitch index of note within scale
 	 */
 	public void drawNote(Canvas canvas, Paint paint, RectF rect, int pad, int note) {
+		int w = (int) rect.width();
+		int h = (int) rect.height();
+		if (w <= 0 || h <= 0 || w > 0xFFF || h > 0xFFF) {
+			return;
+		}
+		
+		// find the label set for this box size
+		SparseArray<Bitmap[]> cache = glyphs;
+		int key = (w << 20) | (h << 8) | (pad & 0xFF);
+		Bitmap[] set = cache.get(key);
+		if (set == null) {
+			set = new Bitmap[getCount()];
+			cache.put(key, set);
+		}
+		if (note < 0 || note >= set.length) {
+			renderNote(canvas, paint, rect, pad, note);
+			return;
+		}
+		
+		// render the label, if not known
+		Bitmap glyph = set[note];
+		if (glyph == null) {
+			glyph = Bitmap.createBitmap(w, h, Bitmap.Config.ALPHA_8);
+			glyphRect.set(0, 0, w, h);
+			// coverage only; color and alpha come from the blit
+			int alpha = paint.getAlpha();
+			paint.setAlpha(255);
+			renderNote(new Canvas(glyph), paint, glyphRect, pad, note);
+			paint.setAlpha(alpha);
+			set[note] = glyph;
+		}
+		
+		canvas.drawBitmap(glyph, rect.left, rect.top, paint);
+	}
+	
+	/**
+	 * render the text of a note
+	 * 
+	 * @param canvas destination canvas for note text
+	 * @param paint text paint object to use
+	 * @param rect rectangle to draw within
+	 * @param pad distance from edge of draw box to text
+	 * @param note pitch index of note within scale
+	 */
+	private void renderNote(Canvas canvas, Paint paint, RectF rect, int pad, int note) {
 
 		// find the largest label width, if not known
 		if (maxLabelWidth == -1) {
@@ -47,6 +47,15 @@ public class Score extends Catalogable {
 	// trash pile for deleted tracks
 	private ArrayList<Track> trash;
 	
+	// tracks deleted in the current transaction
+	private ArrayList<Track> deleted = new ArrayList<Track>();
+	
+	// bumped on every change
+	private int version;
+	
+	// playback copy of the current version, or null
+	private ScoreSnapshot snapshot;
+	
 	/**
 	 * default ctor
 	 */
@@ -173,24 +182,50 @@ public class Score extends Catalogable {
 
 	@Override
 	public void readFields(Cursor sc) {
-		super.readFields(sc);
-		tempo = sc.getInt(sc.getColumnIndex(L_TEMPO));
+		readHeader(sc);
 		Cursor nc = Track.selectByScore(id);
 		if (nc.moveToFirst()) {
 			do {
-				Track track = new Track(this);
+				// voice and scale are read with the track
+				Track track = new Track(this, null, null);
 				track.readFields(nc);
 				tracks.add(track);
 			} while (nc.moveToNext());
-		} else {
-			// the UI can't represent an empty score
-			// so we have to add a default track 
-			Track track = new Track(this);
-			tracks.add(track);
 		}
 		nc.close();
+		addDefaultTrack();
 	}
 
+	/**
+	 * read score properties without loading tracks
+	 * @param sc cursor positioned on a score row
+	 */
+	void readHeader(Cursor sc) {
+		super.readFields(sc);
+		tempo = sc.getInt(sc.getColumnIndex(L_TEMPO));
+	}
+	
+	/**
+	 * add a track read from the database
+	 * does not mark the score as changed
+	 * 
+	 * @param t track object
+	 */
+	void addLoadedTrack(Track t) {
+		tracks.add(t);
+	}
+	
+	/**
+	 * the UI can't represent an empty score
+	 * so we have to add a default track 
+	 */
+	void addDefaultTrack() {
+		if (tracks.size() == 0) {
+			Track track = new Track(this);
+			tracks.add(track);
+		}
+	}
+	
 	@Override
 	public synchronized void writeFields(ContentValues values) {
 		super.writeFields(values);
@@ -206,6 +241,7 @@ public class Score extends Catalogable {
 		// take out the trash as well
 		for (Track track : trash) {
 			track.delete(db);
+			deleted.add(track);
 		}
 		trash.clear();
 	}
@@ -218,10 +254,53 @@ public class Score extends Catalogable {
 		}
 	}
 	
+	@Override
+	protected void onTransactionEnd(boolean committed) {
+		for (Track track : tracks) {
+			track.onTransactionEnd(committed);
+		}
+		for (Track track : deleted) {
+			track.onTransactionEnd(committed);
+			if (!committed) {
+				// still in the table, so try again next time
+				trash.add(track);
+			}
+		}
+		deleted.clear();
+	}
+	
+	/**
+	 * get an immutable copy of the score for playback
+	 * unchanged tracks share parts with earlier snapshots
+	 * 
+	 * @param fresh true to rebuild every part, picking up
+	 * changes made outside the score (scales, tuning)
+	 * @return snapshot object
+	 */
+	public synchronized ScoreSnapshot getSnapshot(boolean fresh) {
+		if (fresh || snapshot == null) {
+			ScoreSnapshot.Part[] parts = new ScoreSnapshot.Part[tracks.size()];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = tracks.get(i).getPart(fresh);
+			}
+			snapshot = new ScoreSnapshot(version, tempo, parts);
+		}
+		return snapshot;
+	}
+	
+	@Override
+	public void onChange() {
+		version++;
+		snapshot = null;
+		super.onChange();
+	}
+	
 	/**
 	 * call when track configuration changes
 	 */
 	void onTrackChange() {
+		version++;
+		snapshot = null;
 		for (int i = 0, il = tracks.size(); i < il; i++) {
 			Track track = tracks.get(i);
 			// reset track indexes to their array positions
@@ -244,8 +323,7 @@ public class Score extends Catalogable {
 	 * @return score object or null if not found
 	 */
 	public static Score fromId(long id) {
-		Score score = new Score();
-		return score.read(id) ? score : null;
+		return ScoreLoader.load(id);
 	}
 	
 	/**
@@ -0,0 +1,340 @@
+package com.wordsaretoys.quencher.data;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.wordsaretoys.quencher.common.Storable;
+import com.wordsaretoys.quencher.common.Storage;
+
+/**
+ * loads a complete score from the database
+ *
+ * rather than letting each track read its own voice,
+ * scale, and notes, the loader reads all track rows
+ * at once, all notes of the score in a single query,
+ * and each distinct voice and scale exactly once,
+ * with the reads running in parallel
+ *
+ * notes may also be loaded progressively: a window
+ * of beats first, then the remainder in chunks that
+ * are handed to a publisher for the UI thread to apply
+ */
+public class ScoreLoader {
+
+	static final String TAG = "ScoreLoader";
+
+	// number of concurrent database readers
+	static final int Readers = 4;
+
+	// number of notes in each streamed chunk
+	static final int ChunkSize = 4096;
+
+	/**
+	 * receives note updates that must run on the thread owning the score
+	 */
+	public interface Publisher {
+		/**
+		 * @param update runnable that applies loaded notes
+		 * @param last true if this is the final update
+		 */
+		public void publish(Runnable update, boolean last);
+	}
+
+	// shared pool of reader threads
+	private static ExecutorService pool;
+
+	// duration of the last load in ms
+	private static long lastLoadTime;
+
+	// note columns, aliased so Note.readFields can find them
+	static final String NoteSelect =
+		"SELECT n." + Note.L_ID + " AS " + Note.L_ID +
+		", n." + Note.L_TRACK + " AS " + Note.L_TRACK +
+		", n." + Note.L_INDEX + " AS " + Note.L_INDEX +
+		", n." + Note.L_PITCH + " AS " + Note.L_PITCH +
+		" FROM " + Note.L_TABLE + " n INNER JOIN " + Track.L_TABLE + " t" +
+		" ON n." + Note.L_TRACK + " = t." + Track.L_ID +
+		" WHERE t." + Track.L_SCORE + " = ?";
+
+	// notes falling within a beat range (note index = beat * slots)
+	static final String WindowFilter =
+		"n." + Note.L_INDEX + " >= ? * t." + Track.L_SLOTS +
+		" AND n." + Note.L_INDEX + " < ? * t." + Track.L_SLOTS;
+
+	// every note of the score, grouped by track
+	static final String AllNotesQuery = NoteSelect +
+		" ORDER BY n." + Note.L_TRACK + ", n." + Note.L_INDEX;
+
+	// notes within the window
+	static final String WindowQuery = NoteSelect +
+		" AND " + WindowFilter +
+		" ORDER BY n." + Note.L_TRACK + ", n." + Note.L_INDEX;
+
+	// next chunk of notes outside the window, keyed on note id
+	static final String RemainderQuery = NoteSelect +
+		" AND NOT (" + WindowFilter + ")" +
+		" AND n." + Note.L_ID + " > ?" +
+		" ORDER BY n." + Note.L_ID + " LIMIT " + ChunkSize;
+
+	// database id of score
+	private long id;
+
+	// score under construction
+	private Score score;
+
+	// tracks by database id
+	private LongSparseArray<Track> tracks;
+
+	// loaded beat window
+	private float windowStart, windowEnd;
+
+	// time that loading began
+	private long startTime;
+
+	/**
+	 * get the reader pool, creating it on first use
+	 * @return executor service
+	 */
+	static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Readers);
+		}
+		return pool;
+	}
+
+	/**
+	 * get duration of the last score load
+	 * @return load time in ms
+	 */
+	public static long getLastLoadTime() {
+		return lastLoadTime;
+	}
+
+	/**
+	 * load a score and everything it references
+	 * @param id database id of score
+	 * @return score object or null if not found
+	 */
+	public static Score load(long id) {
+		ScoreLoader loader = new ScoreLoader(id);
+		Score score = loader.readHeaders(true);
+		if (score != null) {
+			loader.report("loaded");
+		}
+		return score;
+	}
+
+	/**
+	 * ctor
+	 * @param id database id of score
+	 */
+	public ScoreLoader(long id) {
+		this.id = id;
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * read score and track properties, with voices and scales
+	 *
+	 * @param withNotes true if all notes are read alongside
+	 * @return score object or null if not found
+	 */
+	public Score readHeaders(boolean withNotes) {
+		// read the score properties
+		score = new Score();
+		Cursor sc = Storage.INSTANCE.select(
+				Score.L_TABLE, Score.L_FIELDS, null, Storable.L_ID, id);
+		boolean found = sc.moveToFirst();
+		if (found) {
+			score.readHeader(sc);
+		}
+		sc.close();
+		if (!found) {
+			return null;
+		}
+
+		// read all track rows, noting which voices/scales they need
+		tracks = new LongSparseArray<Track>();
+		ArrayList<Track> order = new ArrayList<Track>();
+		LongSparseArray<Future<Voice>> voices = new LongSparseArray<Future<Voice>>();
+		LongSparseArray<Future<Scale>> scales = new LongSparseArray<Future<Scale>>();
+
+		Cursor tc = Track.selectByScore(id);
+		if (tc.moveToFirst()) {
+			do {
+				Track track = new Track(score, null, null);
+				track.readHeader(tc);
+				tracks.put(track.getId(), track);
+				order.add(track);
+
+				final long vid = track.getStoredVoiceId();
+				if (voices.get(vid) == null) {
+					voices.put(vid, getPool().submit(new Callable<Voice>() {
+						public Voice call() {
+							return Voice.fromId(vid);
+						}
+					}));
+				}
+
+				final long kid = track.getStoredScaleId();
+				if (scales.get(kid) == null) {
+					scales.put(kid, getPool().submit(new Callable<Scale>() {
+						public Scale call() {
+							return Scale.fromId(kid);
+						}
+					}));
+				}
+			} while (tc.moveToNext());
+		}
+		tc.close();
+
+		// read every note in the score with one query
+		Future<?> notes = null;
+		if (withNotes) {
+			notes = getPool().submit(new Runnable() {
+				public void run() {
+					readNotes(AllNotesQuery, new String[] { String.valueOf(id) });
+				}
+			});
+		}
+
+		// assemble the object graph once everything is in
+		try {
+			if (notes != null) {
+				notes.get();
+			}
+			for (Track track : order) {
+				track.setReferences(
+						voices.get(track.getStoredVoiceId()).get(),
+						scales.get(track.getStoredScaleId()).get());
+				score.addLoadedTrack(track);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		score.addDefaultTrack();
+		return score;
+	}
+
+	/**
+	 * read the notes within a window of beats
+	 * call before the score is published to other threads
+	 *
+	 * @param first first beat in window
+	 * @param last beat following the window
+	 */
+	public void readWindow(float first, float last) {
+		windowStart = first;
+		windowEnd = last;
+		// the rest of the notes will follow later
+		for (int i = 0, il = tracks.size(); i < il; i++) {
+			tracks.valueAt(i).setStreaming(true);
+		}
+		readNotes(WindowQuery, new String[] {
+				String.valueOf(id),
+				String.valueOf(windowStart),
+				String.valueOf(windowEnd) });
+		report("opened");
+	}
+
+	/**
+	 * read all notes outside the window in chunks
+	 * each chunk is published for application by the UI
+	 *
+	 * @param publisher receives note updates
+	 */
+	public void readRemainder(Publisher publisher) {
+		SQLiteDatabase db = Storage.INSTANCE.getReadableDatabase();
+		String[] args = {
+				String.valueOf(id),
+				String.valueOf(windowStart),
+				String.valueOf(windowEnd),
+				"" };
+		long lastId = -1;
+		boolean more = true;
+
+		while (more) {
+			args[3] = String.valueOf(lastId);
+			Cursor nc = db.rawQuery(RemainderQuery, args);
+			int count = nc.getCount();
+			final Track[] owners = new Track[count];
+			final long[] ids = new long[count];
+			final int[] indexes = new int[count];
+			final int[] pitches = new int[count];
+			int idCol = nc.getColumnIndex(Note.L_ID);
+			int trackCol = nc.getColumnIndex(Note.L_TRACK);
+			int indexCol = nc.getColumnIndex(Note.L_INDEX);
+			int pitchCol = nc.getColumnIndex(Note.L_PITCH);
+			for (int i = 0; nc.moveToNext(); i++) {
+				owners[i] = tracks.get(nc.getLong(trackCol));
+				ids[i] = nc.getLong(idCol);
+				indexes[i] = nc.getInt(indexCol);
+				pitches[i] = nc.getInt(pitchCol);
+			}
+			nc.close();
+
+			more = (count == ChunkSize);
+			if (count > 0) {
+				lastId = ids[count - 1];
+			}
+
+			// the final update also ends streaming on every track
+			final boolean last = !more;
+			publisher.publish(new Runnable() {
+				public void run() {
+					for (int i = 0; i < owners.length; i++) {
+						owners[i].loadNote(ids[i], indexes[i], pitches[i]);
+					}
+					if (last) {
+						for (int i = 0, il = tracks.size(); i < il; i++) {
+							tracks.valueAt(i).setStreaming(false);
+						}
+					}
+				}
+			}, last);
+		}
+		report("loaded");
+	}
+
+	/**
+	 * read notes directly into their tracks
+	 * @param query note query
+	 * @param args query arguments
+	 */
+	private void readNotes(String query, String[] args) {
+		SQLiteDatabase db = Storage.INSTANCE.getReadableDatabase();
+		Cursor nc = db.rawQuery(query, args);
+		int trackCol = nc.getColumnIndex(Note.L_TRACK);
+		Track track = null;
+		if (nc.moveToFirst()) {
+			do {
+				// rows arrive grouped by track
+				long tid = nc.getLong(trackCol);
+				if (track == null || track.getId() != tid) {
+					track = tracks.get(tid);
+				}
+				track.readNote(nc);
+			} while (nc.moveToNext());
+		}
+		nc.close();
+	}
+
+	/**
+	 * log load timing
+	 * @param stage name of completed stage
+	 */
+	private void report(String stage) {
+		lastLoadTime = System.currentTimeMillis() - startTime;
+		Log.i(TAG, stage + " score " + id +
+				" (" + tracks.size() + " tracks) in " +
+				lastLoadTime + " ms");
+	}
+}
@@ -0,0 +1,175 @@
+package com.wordsaretoys.quencher.data;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wordsaretoys.quencher.audio.VoicePatch;
+
+/**
+ * immutable copy of everything needed to play a score
+ *
+ * snapshots are built on the editing thread and handed
+ * to the audio thread, which never touches the live
+ * score. each track caches its part until it changes,
+ * so a new snapshot shares every unchanged part with
+ * the one before it
+ */
+public final class ScoreSnapshot {
+
+	// source of track identity keys
+	static final AtomicInteger Keys = new AtomicInteger();
+
+	/**
+	 * immutable copy of a single track
+	 */
+	public static final class Part {
+
+		// identity of the source track, stable across edits
+		public final int key;
+
+		// compiled voice
+		public final VoicePatch patch;
+
+		// track settings
+		public final float volume, pan, timing;
+		public final boolean muted;
+
+		// note positions, ascending, and their frequencies
+		public final int[] positions;
+		public final float[] freqs;
+
+		/**
+		 * ctor, copies a track
+		 * @param t track object
+		 * @param k identity key
+		 */
+		Part(Track t, int k) {
+			key = k;
+			patch = t.getVoice().getPatch();
+			volume = t.getVolume();
+			pan = t.getPan();
+			timing = t.getTiming();
+			muted = t.isMuted();
+			int n = t.getNoteCount();
+			positions = new int[n];
+			freqs = new float[n];
+			for (int i = 0; i < n; i++) {
+				Note note = t.getNoteAt(i);
+				positions[i] = note.getIndex();
+				freqs[i] = note.getFrequency();
+			}
+		}
+
+		/**
+		 * get number of notes
+		 * @return note count
+		 */
+		public int getNoteCount() {
+			return positions.length;
+		}
+
+		/**
+		 * get last note position
+		 * @return position, or 0 if there are no notes
+		 */
+		public int getLastPosition() {
+			int n = positions.length;
+			return n > 0 ? positions[n - 1] : 0;
+		}
+
+		/**
+		 * get time offset of a note position
+		 * matches Track.positionToTime
+		 *
+		 * @param i note position
+		 * @param tempo score tempo
+		 * @return decimal seconds
+		 */
+		public float positionToTime(int i, int tempo) {
+			return 60f * (float) i * timing / (float) tempo;
+		}
+
+		/**
+		 * find the first note at or after a position
+		 * @param i note position
+		 * @return note index, or note count if none
+		 */
+		public int findPosition(int i) {
+			int lo = 0, hi = positions.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (positions[mid] < i) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * check whether another part would sound the same
+		 * @param p part object
+		 * @return true if the parts match
+		 */
+		boolean sameAs(Part p) {
+			return p.key == key && p.patch == patch && 
+					p.volume == volume && p.pan == pan &&
+					p.timing == timing && p.muted == muted &&
+					Arrays.equals(p.positions, positions) &&
+					Arrays.equals(p.freqs, freqs);
+		}
+
+		/**
+		 * find the first note at or after a time
+		 * @param time decimal seconds
+		 * @param tempo score tempo
+		 * @return note index, or note count if none
+		 */
+		public int findNote(float time, int tempo) {
+			int lo = 0, hi = positions.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (positionToTime(positions[mid], tempo) < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	// score version this snapshot was taken at
+	public final int version;
+
+	// score tempo
+	public final int tempo;
+
+	// track parts in score order
+	public final Part[] parts;
+
+	/**
+	 * ctor
+	 * @param v score version
+	 * @param t tempo
+	 * @param p track parts
+	 */
+	ScoreSnapshot(int v, int t, Part[] p) {
+		version = v;
+		tempo = t;
+		parts = p;
+	}
+
+	/**
+	 * get total score time, not counting voice tails
+	 * @return decimal seconds
+	 */
+	public float getScoreTime() {
+		float beats = 0;
+		for (Part part : parts) {
+			beats = Math.max(beats, part.getLastPosition() * part.timing);
+		}
+		return 60f * beats / (float) tempo;
+	}
+}
@@ -6,6 +6,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.wordsaretoys.quencher.common.Storable;
 import com.wordsaretoys.quencher.common.Storage;
@@ -53,6 +54,12 @@ public class Track extends Storable {
 	
 	public static final String L_ORDER = L_INDEX;
 	
+	/*
+	 * reference counts of voices and scales across all tracks
+	 */
+	private static final Usage VoiceUsage = new Usage(L_VOICE);
+	private static final Usage ScaleUsage = new Usage(L_SCALE);
+	
 	/*
 	 * data variables
 	 */
@@ -93,6 +100,41 @@ public class Track extends Storable {
 	// trash pile for deleted notes
 	private ArrayList<Note> trash;
 	
+	// voice and scale ids last committed to the database
+	private long storedVoiceId = -1;
+	private long storedScaleId = -1;
+	
+	// voice and scale ids written in the current transaction
+	private long writtenVoiceId = -1;
+	private long writtenScaleId = -1;
+	
+	// true while stored notes are still arriving
+	private boolean streaming;
+	
+	// positions cleared by the user before their notes arrived
+	private SparseBooleanArray pendingClears;
+	
+	// identity for playback snapshots
+	private final int key = ScoreSnapshot.Keys.incrementAndGet();
+	
+	// playback copy of the track, or null if it's changed
+	private ScoreSnapshot.Part part;
+	
+	// most recent playback copy
+	private ScoreSnapshot.Part lastPart;
+	
+	// count of changes, for caches of drawn content
+	private volatile int revision;
+	
+	// note counts over ranges of positions
+	private DensityIndex density = new DensityIndex();
+	
+	// depth of nested bulk edits
+	private int editDepth;
+	
+	// true if a change was held back during a bulk edit
+	private boolean editChanged;
+	
 	
 	/**
 	 * ctor, creates new track
@@ -134,14 +176,18 @@ public class Track extends Storable {
 		slots = t.slots;
 		beats = t.beats;
 		notes = new SparseArray<Note>();
+		density.clear();
 		for (int i = 0, il = t.notes.size(); i < il; i++) {
 			Note note = new Note(this);
 			note.copy(t.notes.valueAt(i));
 			notes.put(note.getIndex(), note);
+			density.add(note.getIndex());
 		}
 		index = t.index;
 		muted = t.muted;
 		locked = t.locked;
+		part = null;
+		revision++;
 	}
 	
 	/**
@@ -165,12 +211,59 @@ public class Track extends Storable {
 		if (note == null) {
 			note = new Note(this);
 			notes.put(i, note);
+			density.add(i);
+			note.setIndex(i);
 		}
-		note.setIndex(i);
 		note.setPitchNumber(p);
 		onChange();
 	}
 	
+	/**
+	 * set or clear a run of notes in one pass
+	 * pitches MUST correspond to current scale
+	 * 
+	 * @param start position of first note
+	 * @param pitches pitch numbers, or -1 to clear a position
+	 */
+	public void setNotes(int start, int[] pitches) {
+		beginEdit();
+		try {
+			for (int i = 0; i < pitches.length; i++) {
+				if (pitches[i] != -1) {
+					setNote(start + i, pitches[i]);
+				} else {
+					clearNote(start + i);
+				}
+			}
+		} finally {
+			endEdit();
+		}
+	}
+	
+	/**
+	 * start a bulk edit
+	 * 
+	 * changes made before the matching endEdit() are
+	 * passed up to the score as a single change, so a
+	 * large paste sends one notification, not one per
+	 * note. calls may be nested, and each MUST be
+	 * matched by endEdit() in a finally block
+	 */
+	public void beginEdit() {
+		editDepth++;
+	}
+	
+	/**
+	 * finish a bulk edit
+	 * notifies the score if anything changed
+	 */
+	public void endEdit() {
+		if (editDepth > 0 && --editDepth == 0 && editChanged) {
+			editChanged = false;
+			onChange();
+		}
+	}
+	
 	/**
 	 * remove note from a given position
 	 * @param i position to remove from
@@ -180,6 +273,12 @@ public class Track extends Storable {
 		if (note != null) {
 			trash.add(note);
 			notes.delete(i);
+			density.remove(i);
+		}
+		if (streaming) {
+			// a stored note may not have arrived yet,
+			// even if the user put one here since
+			pendingClears.put(i, true);
 		}
 		onChange();
 	}
@@ -374,6 +473,39 @@ public class Track extends Storable {
 	 */
 	public Score getScore() { return score; }
 	
+	/**
+	 * get note density index
+	 * @return index of note counts by position
+	 */
+	public DensityIndex getDensity() {
+		return density;
+	}
+	
+	/**
+	 * get change count
+	 * differs whenever the track's content has changed
+	 * 
+	 * @return revision number
+	 */
+	public int getRevision() {
+		return revision;
+	}
+	
+	/**
+	 * get an immutable copy of the track for playback
+	 * @param fresh true to rebuild even if nothing has changed
+	 * @return part object
+	 */
+	synchronized ScoreSnapshot.Part getPart(boolean fresh) {
+		if (fresh || part == null || part.patch != voice.getPatch()) {
+			ScoreSnapshot.Part p = new ScoreSnapshot.Part(this, key);
+			// edits that don't change the sound keep the old part
+			part = (lastPart != null && p.sameAs(lastPart)) ? lastPart : p;
+			lastPart = part;
+		}
+		return part;
+	}
+	
 	/**
 	 * get time offset in decimal seconds for a given note position
 	 * @param i note position
@@ -409,19 +541,28 @@ public class Track extends Storable {
 
 	@Override
 	public void readFields(Cursor tc) {
-		super.readFields(tc);
-		long voiceId = tc.getLong(tc.getColumnIndex(L_VOICE));
-		voice = Voice.fromId(voiceId);
-		// crash protection
-		if (voice == null) {
-			voice = Voice.getDefault();
-		}
-		long scaleId = tc.getLong(tc.getColumnIndex(L_SCALE));
-		scale = Scale.fromId(scaleId);
-		// crash protected
-		if (scale == null) {
-			scale = Scale.getDefault();
+		readHeader(tc);
+		setReferences(Voice.fromId(storedVoiceId), Scale.fromId(storedScaleId));
+
+		Cursor nc = Note.selectByTrack(id);
+		if (nc.moveToFirst()) {
+			do {
+				readNote(nc);
+			} while (nc.moveToNext());
 		}
+		nc.close();
+	}
+
+	/**
+	 * read track properties, leaving voice and scale unresolved
+	 * @param tc cursor positioned on a track row
+	 */
+	void readHeader(Cursor tc) {
+		super.readFields(tc);
+		storedVoiceId = tc.getLong(tc.getColumnIndex(L_VOICE));
+		storedScaleId = tc.getLong(tc.getColumnIndex(L_SCALE));
+		writtenVoiceId = storedVoiceId;
+		writtenScaleId = storedScaleId;
 		volume = tc.getFloat(tc.getColumnIndex(L_VOL));
 		pan = tc.getFloat(tc.getColumnIndex(L_PAN));
 		slots = tc.getInt(tc.getColumnIndex(L_SLOTS));
@@ -429,16 +570,99 @@ public class Track extends Storable {
 		index = tc.getInt(tc.getColumnIndex(L_INDEX));
 		muted = (tc.getInt(tc.getColumnIndex(L_MUTED)) == 1);
 		locked = (tc.getInt(tc.getColumnIndex(L_LOCKED)) == 1);
-
-		Cursor nc = Note.selectByTrack(id);
-		if (nc.moveToFirst()) {
-			do {
-				Note note = new Note(this);
-				note.readFields(nc);
-				notes.put(note.getIndex(), note);
-			} while (nc.moveToNext());
+	}
+	
+	/**
+	 * assign the voice and scale read for this track
+	 * does not mark the track as changed
+	 * 
+	 * @param v voice object, or null if it couldn't be read
+	 * @param k scale object, or null if it couldn't be read
+	 */
+	void setReferences(Voice v, Scale k) {
+		// crash protection
+		voice = (v != null) ? v : Voice.getDefault();
+		scale = (k != null) ? k : Scale.getDefault();
+	}
+	
+	/**
+	 * add a note to the track from a note cursor
+	 * @param nc cursor positioned on a note row
+	 */
+	void readNote(Cursor nc) {
+		Note note = new Note(this);
+		note.readFields(nc);
+		if (notes.get(note.getIndex()) == null) {
+			density.add(note.getIndex());
 		}
-		nc.close();
+		notes.put(note.getIndex(), note);
+	}
+	
+	/**
+	 * add a note streamed in from the database
+	 * 
+	 * any edit the user made at this position while
+	 * the note was in flight takes precedence
+	 * 
+	 * @param nid database id of note
+	 * @param i position of note
+	 * @param p pitch number
+	 */
+	void loadNote(long nid, int i, int p) {
+		Note note = notes.get(i);
+		if (note != null && note.getId() == -1) {
+			// unsaved user note takes over the stored row
+			note.setId(nid);
+			return;
+		}
+		Note stored = new Note(this);
+		stored.load(nid, i, p);
+		part = null;
+		revision++;
+		if (note != null || (streaming && pendingClears.get(i))) {
+			// user's edit wins, so delete the stored row
+			// and make sure the delete gets saved
+			trash.add(stored);
+			onChange();
+		} else {
+			notes.put(i, stored);
+			density.add(i);
+		}
+	}
+	
+	/**
+	 * set streaming state
+	 * while streaming, edits are reconciled with arriving notes
+	 * 
+	 * @param s true if notes are still arriving
+	 */
+	void setStreaming(boolean s) {
+		streaming = s;
+		pendingClears = s ? new SparseBooleanArray() : null;
+	}
+	
+	/**
+	 * get streaming state
+	 * @return true if stored notes are still arriving
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
+	/**
+	 * get the voice id last read from or committed to the database
+	 * @return voice database id
+	 */
+	long getStoredVoiceId() {
+		return storedVoiceId;
+	}
+	
+	/**
+	 * get the scale id last read from or committed to the database
+	 * @return scale database id
+	 */
+	long getStoredScaleId() {
+		return storedScaleId;
 	}
 
 	@Override
@@ -447,6 +671,9 @@ public class Track extends Storable {
 		values.put(L_SCORE, score.getId());
 		values.put(L_VOICE, voice.getId());
 		values.put(L_SCALE, scale.getId());
+		// usage counts follow once the write is committed
+		writtenVoiceId = voice.getId();
+		writtenScaleId = scale.getId();
 		values.put(L_VOL, volume);
 		values.put(L_PAN, pan);
 		values.put(L_SLOTS, slots);
@@ -458,7 +685,14 @@ public class Track extends Storable {
 
 	@Override
 	protected void onChange() {
+		part = null;
+		revision++;
 		super.onChange();
+		if (editDepth > 0) {
+			// pass it on when the bulk edit ends
+			editChanged = true;
+			return;
+		}
 		// parent onChange fires ScoreChange event
 		score.onChange();
 	}
@@ -483,6 +717,22 @@ public class Track extends Storable {
 		// a mass delete by key is much faster
 		// than calling delete() for each note
 		Note.deleteByTrack(db, id);
+		writtenVoiceId = -1;
+		writtenScaleId = -1;
+	}
+	
+	@Override
+	protected void onTransactionEnd(boolean committed) {
+		if (committed) {
+			// keep usage counts in step with the table
+			VoiceUsage.move(storedVoiceId, writtenVoiceId);
+			storedVoiceId = writtenVoiceId;
+			ScaleUsage.move(storedScaleId, writtenScaleId);
+			storedScaleId = writtenScaleId;
+		} else {
+			writtenVoiceId = storedVoiceId;
+			writtenScaleId = storedScaleId;
+		}
 	}
 	
 	/**
@@ -495,31 +745,13 @@ public class Track extends Storable {
 				L_TABLE, L_FIELDS, L_ORDER, L_SCORE, id);
 	}
 	
-	/**
-	 * determines if an object is used by ANY track
-	 * @param id database id of object
-	 * @return true if object is in use
-	 */
-	private static boolean usesObject(String field, long id) {
-		SQLiteDatabase db = Storage.INSTANCE.getReadableDatabase();
-		String[] args = { String.valueOf(id) };
-		String[] cols = { L_ID }; 
-		Cursor tc = db.query(
-				L_TABLE, cols,	
-				field + " = ?", args, 
-				null, null, null);
-		boolean used = tc.getCount() > 0; 
-		tc.close();
-		return used;
-	}
-	
 	/**
 	 * determines if a scale is used by ANY track
 	 * @param id database id of scale
 	 * @return true if scale is in use
 	 */
 	public static boolean usesScale(long id) {
-		return usesObject(L_SCALE, id);
+		return ScaleUsage.isUsed(id);
 	}
 	
 	/**
@@ -528,7 +760,7 @@ public class Track extends Storable {
 	 * @return true if voice is in use
 	 */
 	public static boolean usesVoice(long id) {
-		return usesObject(L_VOICE, id);
+		return VoiceUsage.isUsed(id);
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.wordsaretoys.quencher.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LongSparseArray;
+
+import com.wordsaretoys.quencher.common.Storage;
+
+/**
+ * maintains in-memory reference counts of
+ * objects (voices, scales) used by tracks
+ *
+ * counts are loaded from the track table on
+ * first use and kept current as track writes
+ * and deletes are committed
+ */
+class Usage {
+
+	// track field holding the object reference
+	private String field;
+
+	// reference counts by object id, null until loaded
+	private LongSparseArray<Integer> counts;
+
+	/**
+	 * ctor
+	 * @param f name of referencing field in track table
+	 */
+	Usage(String f) {
+		field = f;
+	}
+
+	/**
+	 * determines if an object is used by ANY track
+	 *
+	 * a zero count is confirmed against the database,
+	 * as callers use a negative answer to allow deletes
+	 *
+	 * @param id database id of object
+	 * @return true if object is in use
+	 */
+	synchronized boolean isUsed(long id) {
+		if (counts == null) {
+			load();
+		}
+		Integer c = counts.get(id);
+		if (c != null && c > 0) {
+			return true;
+		}
+		return Storage.INSTANCE.exists(Track.L_TABLE, field, id);
+	}
+
+	/**
+	 * moves a reference from one object to another
+	 * pass -1 for either id to add or remove a reference
+	 *
+	 * @param from database id of object losing a reference
+	 * @param to database id of object gaining a reference
+	 */
+	synchronized void move(long from, long to) {
+		// if we haven't loaded yet, the table is current
+		if (counts == null || from == to) {
+			return;
+		}
+		if (from != -1) {
+			Integer c = counts.get(from);
+			if (c != null && c > 1) {
+				counts.put(from, c - 1);
+			} else {
+				counts.remove(from);
+			}
+		}
+		if (to != -1) {
+			Integer c = counts.get(to);
+			counts.put(to, c != null ? c + 1 : 1);
+		}
+	}
+
+	/**
+	 * load reference counts from the track table
+	 */
+	private void load() {
+		counts = new LongSparseArray<Integer>();
+		SQLiteDatabase db = Storage.INSTANCE.getReadableDatabase();
+		String[] cols = { field, "COUNT(*)" };
+		Cursor tc = db.query(
+				Track.L_TABLE, cols,
+				null, null, field, null, null);
+		if (tc.moveToFirst()) {
+			do {
+				counts.put(tc.getLong(0), tc.getInt(1));
+			} while (tc.moveToNext());
+		}
+		tc.close();
+	}
+}
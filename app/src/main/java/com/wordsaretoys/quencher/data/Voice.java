@@ -7,6 +7,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.wordsaretoys.quencher.audio.VoicePatch;
 import com.wordsaretoys.quencher.common.Catalogable;
 import com.wordsaretoys.quencher.common.Storage;
 
@@ -59,6 +60,9 @@ public class Voice extends Catalogable {
 	
 	// trash pile for deleted stages
 	private ArrayList<Stage> trash;
+	
+	// compiled form for the synthesizers, replaced on change
+	private volatile VoicePatch patch;
 
 	/**
 	 * default ctor
@@ -82,6 +86,7 @@ public class Voice extends Catalogable {
 			stage.copy(s);
 			stages.add(stage);
 		}
+		patch = null;
 	}
 
 	/**
@@ -186,6 +191,26 @@ public class Voice extends Catalogable {
 		onChange();
 	}
 	
+	/**
+	 * get the compiled form of the voice
+	 * @return voice patch
+	 */
+	public VoicePatch getPatch() {
+		VoicePatch p = patch;
+		if (p == null) {
+			p = new VoicePatch(this);
+			patch = p;
+		}
+		return p;
+	}
+	
+	@Override
+	public void onChange() {
+		super.onChange();
+		// recompile and publish in one reference write
+		patch = new VoicePatch(this);
+	}
+	
 	@Override
 	public String getTableName() {
 		return L_TABLE;
@@ -223,6 +248,7 @@ public class Voice extends Catalogable {
 			stages.add(stage);
 			
 		}
+		patch = new VoicePatch(this);
 	}
 
 	@Override
@@ -254,7 +280,7 @@ public class Voice extends Catalogable {
 			// reset indexes to their array positions
 			stage.setIndex(i);
 		}
-		super.onChange();
+		onChange();
 	}
 	
 	@Override
@@ -105,7 +105,7 @@ public class ScaleActivity extends Activity implements NotificationListener {
 	@Override
 	public void onResume() {
 		super.onResume();
-	    Notifier.INSTANCE.register(this);
+	    Notifier.INSTANCE.register(this, Events);
 
 	    // hide any restored deferred dialogs
 	    // until they can be properly refreshed
@@ -308,6 +308,15 @@ public class ScaleActivity extends Activity implements NotificationListener {
 			.show(getFragmentManager(), Popup.Deferred);
 	}
 
+	// events handled below
+	static final int[] Events = {
+		Notifier.ScaleReady, Notifier.AudioPlaying, Notifier.AudioStopped,
+		Notifier.NewScale, Notifier.ScaleChange, Notifier.ToneCursorChange,
+		Notifier.StorageSaveFailed, Notifier.StorageDeleteFailed,
+		Notifier.AudioInitFailed, Notifier.Mp4WriteFailed,
+		Notifier.WavWriteFailed
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -345,6 +354,7 @@ public class ScaleActivity extends Activity implements NotificationListener {
 		case Notifier.StorageDeleteFailed:
 		case Notifier.AudioInitFailed:
 		case Notifier.Mp4WriteFailed:
+		case Notifier.WavWriteFailed:
 			Popup.createWarning(msg)
 				.show(getFragmentManager(), Popup.Deferred);
 			break;
@@ -204,7 +204,7 @@ public class ToneFragment extends Fragment implements NotificationListener {
 	@Override
 	public void onResume() {
 		super.onResume();
-		Notifier.INSTANCE.register(this);
+		Notifier.INSTANCE.register(this, Events);
 		updateValues();
 		mainView.setVisibility(
 			Engine.INSTANCE.isPlaying() ? View.GONE : View.VISIBLE);
@@ -250,6 +250,12 @@ public class ToneFragment extends Fragment implements NotificationListener {
 		updating = false;
 	}
 
+	// events handled below
+	static final int[] Events = {
+		Notifier.AudioPlaying, Notifier.AudioStopped, Notifier.NewScale,
+		Notifier.ToneCursorChange
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
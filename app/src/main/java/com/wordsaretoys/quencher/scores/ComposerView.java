@@ -5,6 +5,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.Paint.Style;
@@ -14,6 +15,9 @@ import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.LongSparseArray;
+import android.view.Choreographer;
+import android.view.Choreographer.FrameCallback;
 import android.view.GestureDetector;
 import android.view.GestureDetector.OnDoubleTapListener;
 import android.view.GestureDetector.OnGestureListener;
@@ -65,6 +69,28 @@ public class ComposerView extends View implements
 	static final int NoteCenter = NoteButtonSize / 2;
 	static final int NoteTextArea = NoteButtonSize - 2 * NoteButtonPad;
 	
+	// beats covered by each cached tile
+	static final int TileBeats = 4;
+	
+	/**
+	 * cached rendering of one track row's grid
+	 * and note buttons over a range of beats
+	 */
+	static class Tile {
+		// rendered content
+		Bitmap bitmap;
+		// track rendered, or null for an empty row
+		Track track;
+		// scale of the track when rendered
+		Scale scale;
+		// track and scale revisions rendered
+		int revision, scaleRevision;
+		// draw pass that last used the tile
+		int used;
+		// false until rendered
+		boolean valid;
+	}
+	
 	final Resources Res = getResources();
 	
 	// color resources
@@ -146,11 +172,41 @@ public class ComposerView extends View implements
 	// elapsed playback time in decimal seconds
 	float playbackTime;
 	
+	// polls the playback position once per display frame
+	FrameCallback playhead = new FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			if (playback) {
+				playbackTime = Engine.INSTANCE.getPlaybackTime();
+				invalidate();
+				Choreographer.getInstance().postFrameCallback(this);
+			}
+		}
+	};
+	
 	// beat scaling factor across tracks 
 	float beatScale;
 	
 	// note undergoing press indicator flag
 	boolean pressing;
+	
+	// cached tiles by track row (high word) and tile index
+	LongSparseArray<Tile> tiles = new LongSparseArray<Tile>();
+	
+	// canvas for rendering tiles
+	Canvas tileCanvas = new Canvas();
+	
+	// width of a tile at the current beat scale
+	float tileWidth;
+	
+	// most tiles to keep
+	int maxTiles;
+	
+	// draw pass counter, for finding stale tiles
+	int drawPass;
+	
+	// overview strip following the visible range, if any
+	MinimapView minimap;
 
 	/**
 	 * default ctor, required by layout inflator
@@ -218,6 +274,7 @@ public class ComposerView extends View implements
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		enforceScrollLimits();
 		updateBeatScale();
+		flushTiles();
 	}
 	
 	/**
@@ -427,6 +484,14 @@ public class ComposerView extends View implements
 		postInvalidate();
 	}
 
+	/**
+	 * set the overview strip that follows this view
+	 * @param m minimap view
+	 */
+	public void setMinimap(MinimapView m) {
+		minimap = m;
+	}
+
 	/**
 	 * scroll or jump to specified position
 	 * @param time decimal seconds to move to
@@ -450,16 +515,25 @@ public class ComposerView extends View implements
 	
 	/**
 	 * draw the custom view
+	 * 
+	 * the grid and note buttons come from cached tiles;
+	 * annotations, cursor, and note highlights for play,
+	 * press, and selection are drawn over them each time
 	 */
 	protected void onDraw(Canvas canvas) {
 		
 		ScoreCommon common = ScoreActivity.common;
 		Score score = common.getScore();
+		drawPass++;
+		if (tileWidth <= 0) {
+			updateBeatScale();
+			flushTiles();
+		}
 
 		// find beat/track drawing limits
 		int firstBeat = (int) screenToBeat(0);
 		int lastBeat = (int) screenToBeat(getWidth());
-		int firstTrack = screenToTrack(0);
+		int firstTrack = Math.max(0, screenToTrack(0));
 		int lastTrack = screenToTrack(getHeight());
 		int trackCount = score.getTrackCount();
 
@@ -478,14 +552,13 @@ public class ComposerView extends View implements
 		canvas.clipRect(0, 0, getWidth(), TimeBarHeight, Op.REPLACE);
 		canvas.drawColor(TimeBarBackingColor);
 
-		canvas.clipRect(0, 0, getWidth(), getHeight(), Op.REPLACE);
 		lineBrush.setStrokeWidth(GridSize);
+		lineBrush.setColor(NoteFocusColor);
 		textBrush.setColor(TimeBarTextColor);
 		
 		// for each beat
 		for (int b = firstBeat - 1; b <= lastBeat; b++) {
 			float x = beatToScreen(b) - GridSize;
-			lineBrush.setColor(NoteFocusColor);
 
 			// every four beats
 			if (b % 4 == 0) {
@@ -504,10 +577,6 @@ public class ComposerView extends View implements
 				canvas.drawLine(x, TimeLineTop, x, TimeBarHeight, lineBrush);
 			}
 			
-			// draw beat lines
-			lineBrush.setColor(GridLineColor);
-			canvas.drawLine(x, TimeBarHeight, x, getHeight(), lineBrush);
-
 			// draw the beat marker if it's present
 			if (!playback && b == common.getBeatMarker()) {
 				fillBrush.setColor(PlayMarkerColor);
@@ -518,101 +587,80 @@ public class ComposerView extends View implements
 		}
 
 		canvas.clipRect(0, TimeBarHeight, getWidth(), getHeight(), Op.REPLACE);
-		textBrush.setColor(NoteButtonTextColor);
-		
-		// for each potential track 
+
+		// blit the cached grid and notes of each row
+		int firstTile = (int)(scrollX / tileWidth);
+		int lastTile = (int)((scrollX + getWidth()) / tileWidth);
 		for (int t = firstTrack; t <= lastTrack; t++) {
+			Track track = t < trackCount ? score.getTrack(t) : null;
+			float top = trackToScreen(t);
+			for (int k = firstTile; k <= lastTile; k++) {
+				Tile tile = getTile(t, k, track);
+				canvas.drawBitmap(tile.bitmap, k * tileWidth - scrollX, top, null);
+			}
+		}
+		
+		// for each visible track 
+		for (int t = firstTrack; t <= lastTrack && t < trackCount; t++) {
 			float top = trackToScreen(t);
 			float noteTop = top + NoteTop;
+			Track track = score.getTrack(t);
+
+			// draw annotations
+			textBrush.setTextSize(AnnotationSize);
+			textBrush.setColor(AnnotationColor);
+			float uy = midText(textBrush, 
+					AnnotationTop, AnnotationTop + AnnotationSize);
+			
+			buildLeftAnnotation(track);
+			textBrush.setTextAlign(Align.LEFT);
+			canvas.drawText(charBuffer, 0, stringer.length(), 
+					GapSize, top + uy, textBrush);
 			
-			// draw grid line
-			lineBrush.setStrokeWidth(GridSize);
-			lineBrush.setColor(GridLineColor);
-			float y = top + TrackHeight - GridSize;
-			canvas.drawLine(0, y, getWidth(), y, lineBrush);
-
-			// if there's actually a track here
-			if (t < trackCount) {
-
-				Track track = score.getTrack(t);
-				Scale scale = track.getScale();
-
-				// draw annotations
-				textBrush.setTextSize(AnnotationSize);
-				textBrush.setColor(AnnotationColor);
-				if (track != null) {
-					float uy = midText(textBrush, 
-							AnnotationTop, AnnotationTop + AnnotationSize);
-					
-					buildLeftAnnotation(track);
-					textBrush.setTextAlign(Align.LEFT);
-					canvas.drawText(charBuffer, 0, stringer.length(), 
-							GapSize, top + uy, textBrush);
-					
-					buildRightAnnotation(track);
-					textBrush.setTextAlign(Align.RIGHT);
-					canvas.drawText(charBuffer, 0, stringer.length(), 
-							getWidth() - GapSize, top + uy, textBrush);
+			buildRightAnnotation(track);
+			textBrush.setTextAlign(Align.RIGHT);
+			canvas.drawText(charBuffer, 0, stringer.length(), 
+					getWidth() - GapSize, top + uy, textBrush);
+
+			// find the visible notes
+			float timing = track.getTiming();
+			int firstNote = screenToNote(0, timing);
+			int lastNote = screenToNote(getWidth(), timing);
+
+			// draw the cursor highlight if it points here
+			// and the score is currently editable
+			if (isEditable() && t == editTrackPos && 
+					editNotePos >= firstNote && editNotePos <= lastNote) {
+				float x0 = noteToScreen(editNotePos, timing) + GapSize;
+				float y = top + CursorTop;
+				lineBrush.setStrokeWidth(CursorSize);
+				lineBrush.setColor(NoteFocusColor);
+				canvas.drawLine(x0, y, x0 + NoteButtonSize, y, lineBrush);
+			}
+
+			// redraw notes whose backing has changed, lowest
+			// priority first: playing, then pressed, then selected
+			textBrush.setColor(NoteButtonTextColor);
+			if (playback) {
+				int n = track.timeToPosition(playbackTime);
+				if (n >= firstNote && n <= lastNote && track.getNote(n) != null) {
+					drawNoteButton(canvas, track, n, 
+							noteToScreen(n, timing), noteTop, NotePlayingColor);
 				}
-	
-				// find the visible notes
-				float timing = track.getTiming();
-				int firstNote = screenToNote(0, timing);
-				int lastNote = screenToNote(getWidth(), timing);
-	
-				int playbackIndex = track.timeToPosition(playbackTime);
-	
-				// for each note
+			}
+			if (pressing && t == trackTouched && 
+					slotTouched >= firstNote && slotTouched <= lastNote) {
+				drawNoteButton(canvas, track, slotTouched, 
+						noteToScreen(slotTouched, timing), noteTop, NotePressedColor);
+			}
+			if (common.isSelecting() && track == common.getSelectionTrack()) {
 				for (int n = firstNote; n <= lastNote; n++) {
-	
-					float left = noteToScreen(n, timing);
-					float x0 = left + GapSize;
-					float y0 = noteTop;
-					float x1 = x0 + NoteButtonSize;
-					float y1 = y0 + NoteButtonSize;
-					rect.set(x0, y0, x1, y1);
-	
-					Note note = track.getNote(n);
-					
-					// draw the cursor highlight if it points here
-					// and the score is currently editable
-					if (isEditable() && t == editTrackPos && n == editNotePos) {
-						lineBrush.setStrokeWidth(CursorSize);
-						lineBrush.setColor(NoteFocusColor);
-						y = top + CursorTop;
-						canvas.drawLine(x0, y, x1, y, lineBrush);
-					}
-	
-					// choose button back color based on playback,
-					// selection state and position within the bar
-					boolean selected = common.isSelecting() &&
-							track == common.getSelectionTrack() && 
-							common.isNoteSelected(n);
-					boolean playnote = playback && 
-							playbackIndex == n && 
-							note != null;
-					boolean barstart = (n % (track.getSlots() * track.getBeats())) == 0;
-					boolean pressed = pressing && 
-							t == trackTouched &&
-							n == slotTouched;
-					if (selected) {
-						fillBrush.setColor(SelectionColor);
-					} else if (pressed) {
-						fillBrush.setColor(NotePressedColor);
-					} else if (playnote) {
-						fillBrush.setColor(NotePlayingColor);
-					} else if (barstart) {
-						fillBrush.setColor(BarBackingColor);
-					} else {
-						fillBrush.setColor(ButtonBackingColor);
-					}
-					canvas.drawRoundRect(rect, 8, 8, fillBrush);
-	
-					if (note != null) {
-						scale.drawNote(canvas, textBrush, rect, NoteButtonPad, note.getPitchNumber());
+					if (common.isNoteSelected(n)) {
+						drawNoteButton(canvas, track, n, 
+								noteToScreen(n, timing), noteTop, SelectionColor);
 					}
 				}
-			}			
+			}
 		}
 		
 		// draw marker and scroll to current position during playback
@@ -640,6 +688,140 @@ public class ComposerView extends View implements
 			postInvalidate();
 		}
 		
+		if (minimap != null) {
+			minimap.setWindow(screenToBeat(0), screenToBeat(getWidth()));
+		}
+	}
+
+	/**
+	 * draw a note button and its label
+	 * 
+	 * @param canvas destination canvas
+	 * @param track track containing the note
+	 * @param n note position
+	 * @param left x coordinate of the note slot
+	 * @param top y coordinate of the button
+	 * @param color button backing color
+	 */
+	private void drawNoteButton(Canvas canvas, Track track, int n, 
+			float left, float top, int color) {
+		float x0 = left + GapSize;
+		rect.set(x0, top, x0 + NoteButtonSize, top + NoteButtonSize);
+		fillBrush.setColor(color);
+		canvas.drawRoundRect(rect, 8, 8, fillBrush);
+		Note note = track.getNote(n);
+		if (note != null) {
+			track.getScale().drawNote(canvas, textBrush, rect, 
+					NoteButtonPad, note.getPitchNumber());
+		}
+	}
+	
+	/**
+	 * get the tile for a row and beat range
+	 * renders the tile if it's new or its track has changed
+	 * 
+	 * @param t track row index
+	 * @param k tile index along the row
+	 * @param track track in the row, or null if none
+	 * @return tile object
+	 */
+	private Tile getTile(int t, int k, Track track) {
+		long key = ((long) t << 32) | (k & 0xFFFFFFFFL);
+		Tile tile = tiles.get(key);
+		if (tile == null) {
+			tile = tiles.size() >= maxTiles ? evictTile() : new Tile();
+			tiles.put(key, tile);
+		}
+		tile.used = drawPass;
+		if (!tile.valid || tile.track != track || (track != null && 
+				(tile.revision != track.getRevision() || 
+				tile.scale != track.getScale() ||
+				tile.scaleRevision != track.getScale().getRevision()))) {
+			renderTile(tile, k, track);
+		}
+		return tile;
+	}
+	
+	/**
+	 * remove the least recently drawn tile from the cache
+	 * @return tile object, to be rendered anew
+	 */
+	private Tile evictTile() {
+		int oldest = 0;
+		for (int i = 1, il = tiles.size(); i < il; i++) {
+			if (tiles.valueAt(i).used < tiles.valueAt(oldest).used) {
+				oldest = i;
+			}
+		}
+		Tile tile = tiles.valueAt(oldest);
+		tiles.removeAt(oldest);
+		tile.valid = false;
+		return tile;
+	}
+	
+	/**
+	 * render the grid and note buttons of a tile
+	 * 
+	 * @param tile tile object
+	 * @param k tile index along the row
+	 * @param track track in the row, or null if none
+	 */
+	private void renderTile(Tile tile, int k, Track track) {
+		// note what's being drawn before drawing it, so an
+		// edit made meanwhile leaves the tile out of date
+		tile.track = track;
+		if (track != null) {
+			tile.revision = track.getRevision();
+			tile.scale = track.getScale();
+			tile.scaleRevision = tile.scale.getRevision();
+		}
+		tile.valid = true;
+
+		if (tile.bitmap == null) {
+			tile.bitmap = Bitmap.createBitmap(
+					(int) Math.ceil(tileWidth), TrackHeight, Bitmap.Config.ARGB_8888);
+		}
+		tile.bitmap.eraseColor(Color.TRANSPARENT);
+		Canvas canvas = tileCanvas;
+		canvas.setBitmap(tile.bitmap);
+		float x0 = k * tileWidth;
+		
+		// draw beat lines and the row's grid line
+		lineBrush.setStrokeWidth(GridSize);
+		lineBrush.setColor(GridLineColor);
+		for (int b = k * TileBeats; b <= (k + 1) * TileBeats; b++) {
+			float x = b * BeatWidth * beatScale - GridSize - x0;
+			canvas.drawLine(x, 0, x, TrackHeight, lineBrush);
+		}
+		float y = TrackHeight - GridSize;
+		canvas.drawLine(0, y, tile.bitmap.getWidth(), y, lineBrush);
+
+		// draw every note button that overlaps the tile
+		if (track != null) {
+			float noteWidth = track.getTiming() * beatScale * NoteWidth;
+			int firstNote = Math.max(0, (int)((x0 - GapSize - NoteButtonSize) / noteWidth));
+			int lastNote = (int)((x0 + tileWidth) / noteWidth);
+			int bar = track.getSlots() * track.getBeats();
+			textBrush.setColor(NoteButtonTextColor);
+			for (int n = firstNote; n <= lastNote; n++) {
+				drawNoteButton(canvas, track, n, n * noteWidth - x0, NoteTop, 
+						n % bar == 0 ? BarBackingColor : ButtonBackingColor);
+			}
+		}
+		canvas.setBitmap(null);
+	}
+	
+	/**
+	 * drop all cached tiles and size the cache to the view
+	 */
+	private void flushTiles() {
+		// bitmaps aren't recycled, as the last frame may still use them
+		tiles.clear();
+		tileWidth = TileBeats * BeatWidth * beatScale;
+		// enough for a screenful plus a column and row to scroll into
+		int columns = (int) Math.ceil(getWidth() / tileWidth) + 2;
+		int rows = getHeight() / TrackHeight + 2;
+		maxTiles = columns * rows;
 	}
 
 	/**
@@ -697,7 +879,10 @@ public class ComposerView extends View implements
 			Track track = score.getTrack(i);
 			t = Math.min(t, track.getTiming());
 		}
-		beatScale = 1f / t;
+		if (beatScale != 1f / t) {
+			beatScale = 1f / t;
+			flushTiles();
+		}
 	}
 	
 	/**
@@ -715,24 +900,41 @@ public class ComposerView extends View implements
 	 */
 	private void onAudioPlaying() {
 		playback = true;
+		startPlayhead();
 		postInvalidate();
 	}
 	
 	/**
-	 * handle audio marker event
-	 * @param ms elapsed time in ms
+	 * handle end of score playback
 	 */
-	private void onAudioMarker(int ms) {
-		playbackTime = (float) ms / 1000f;
+	private void onAudioStopped() {
+		playback = false;
+		Choreographer.getInstance().removeFrameCallback(playhead);
 		postInvalidate();
 	}
 	
 	/**
-	 * handle end of score playback
+	 * start following the playback position
 	 */
-	private void onAudioStopped() {
-		playback = false;
-		postInvalidate();
+	private void startPlayhead() {
+		Choreographer c = Choreographer.getInstance();
+		c.removeFrameCallback(playhead);
+		c.postFrameCallback(playhead);
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (playback) {
+			startPlayhead();
+		}
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		Choreographer.getInstance().removeFrameCallback(playhead);
+		flushTiles();
+		super.onDetachedFromWindow();
 	}
 	
 	/**
@@ -842,6 +1044,13 @@ public class ComposerView extends View implements
 		}
 	}
 
+	// events handled below
+	static final int[] Events = {
+		Notifier.NewScore, Notifier.ScoreChange, Notifier.CursorChange,
+		Notifier.ScoreProgress, Notifier.AudioPlaying,
+		Notifier.AudioStopped, Notifier.AudioOff, Notifier.SettingChange
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -858,12 +1067,12 @@ public class ComposerView extends View implements
 		case Notifier.CursorChange:
 			onCursorChange();
 			break;
+		case Notifier.ScoreProgress:
+			postInvalidate();
+			break;
 		case Notifier.AudioPlaying:
 			onAudioPlaying();
 			break;
-		case Notifier.AudioMarker:
-			onAudioMarker(msg.arg1);
-			break;
 		case Notifier.AudioStopped:
 			onAudioStopped();
 			break;
@@ -0,0 +1,247 @@
+package com.wordsaretoys.quencher.scores;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.os.Message;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.wordsaretoys.quencher.R;
+import com.wordsaretoys.quencher.common.Notifier;
+import com.wordsaretoys.quencher.common.Notifier.NotificationListener;
+import com.wordsaretoys.quencher.data.DensityIndex;
+import com.wordsaretoys.quencher.data.Score;
+import com.wordsaretoys.quencher.data.Track;
+
+/**
+ * overview strip of the whole score
+ *
+ * shows note density per track, with the part of the
+ * score visible in the composer outlined. touching it
+ * moves the composer to that point. densities come from
+ * each track's index, so drawing costs one count per
+ * pixel however many notes there are
+ */
+public class MinimapView extends View implements NotificationListener {
+
+	static final String TAG = "MinimapView";
+
+	// fewest beats the strip will show
+	static final int MinBeats = 16;
+
+	// extra room past the last note, as a fraction
+	static final float TailRoom = 0.05f;
+
+	// gap between track rows
+	static final int RowGap = 1;
+
+	// width of the visible window outline
+	static final int WindowStroke = 2;
+
+	// lowest alpha of a column containing notes
+	static final int MinAlpha = 64;
+
+	// colors can be obtained from resources
+	final Resources Res = getResources();
+	// background color
+	final int BackingColor = Res.getColor(R.color.ltgray0);
+	// note density color
+	final int DensityColor = Res.getColor(R.color.asphalt);
+	// visible window color
+	final int WindowColor = Res.getColor(R.color.carrot);
+
+	// paint objects for all drawing
+	Paint fillBrush, lineBrush;
+
+	// rendered density map
+	Bitmap map;
+	
+	// true if the density map is out of date
+	boolean stale = true;
+
+	// beats covered by the strip
+	float beats = MinBeats;
+
+	// beats visible in the composer
+	float windowStart, windowEnd;
+
+	// composer to move on touch
+	ComposerView composer;
+
+	/**
+	 * default ctor, required by layout inflator
+	 * @param context
+	 * @param attrs
+	 */
+	public MinimapView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+
+		setBackgroundColor(BackingColor);
+
+		fillBrush = new Paint();
+		fillBrush.setStyle(Style.FILL);
+
+		lineBrush = new Paint();
+		lineBrush.setStyle(Style.STROKE);
+		lineBrush.setStrokeWidth(WindowStroke);
+		lineBrush.setColor(WindowColor);
+	}
+
+	/**
+	 * set the composer that follows the strip
+	 * @param c composer view
+	 */
+	public void setComposer(ComposerView c) {
+		composer = c;
+	}
+
+	/**
+	 * set the range of beats visible in the composer
+	 * @param start first visible beat
+	 * @param end last visible beat
+	 */
+	public void setWindow(float start, float end) {
+		if (start != windowStart || end != windowEnd) {
+			windowStart = start;
+			windowEnd = end;
+			invalidate();
+		}
+	}
+
+	/**
+	 * mark the density map as out of date
+	 */
+	private void refresh() {
+		stale = true;
+		postInvalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		map = null;
+		stale = true;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (getWidth() == 0 || getHeight() == 0) {
+			return;
+		}
+		if (map == null) {
+			map = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+		}
+		if (stale) {
+			map.eraseColor(Color.TRANSPARENT);
+			renderMap(map);
+			stale = false;
+		}
+		canvas.drawBitmap(map, 0, 0, null);
+
+		// outline the part the composer shows
+		float x0 = getWidth() * windowStart / beats;
+		float x1 = getWidth() * windowEnd / beats;
+		canvas.drawRect(x0, WindowStroke * 0.5f,
+				Math.max(x1, x0 + WindowStroke), getHeight() - WindowStroke * 0.5f, lineBrush);
+	}
+
+	/**
+	 * render note densities of every track
+	 * one density query per pixel column per row
+	 *
+	 * @param bitmap destination bitmap
+	 */
+	private void renderMap(Bitmap bitmap) {
+		Score score = ScoreActivity.common.getScore();
+		int trackCount = score.getTrackCount();
+		int w = bitmap.getWidth();
+		int h = bitmap.getHeight();
+
+		// find the extent of the score in beats
+		float last = 0;
+		for (int t = 0; t < trackCount; t++) {
+			Track track = score.getTrack(t);
+			int n = track.getNoteCount();
+			if (n > 0) {
+				last = Math.max(last,
+						(track.getNoteAt(n - 1).getIndex() + 1) * track.getTiming());
+			}
+		}
+		beats = Math.max(MinBeats, last * (1 + TailRoom));
+
+		if (trackCount == 0) {
+			return;
+		}
+
+		// with more tracks than pixel rows, some are left out
+		int rows = Math.min(trackCount, h);
+		float rowHeight = (float) h / (float) rows;
+		Canvas canvas = new Canvas(bitmap);
+		fillBrush.setColor(DensityColor);
+		int alpha = fillBrush.getAlpha();
+
+		for (int r = 0; r < rows; r++) {
+			Track track = score.getTrack(r * trackCount / rows);
+			DensityIndex density = track.getDensity();
+			if (density.getTotal() == 0) {
+				continue;
+			}
+			float y0 = r * rowHeight;
+			float y1 = Math.max(y0 + 1, (r + 1) * rowHeight - RowGap);
+			float slots = beats / (track.getTiming() * w);
+			for (int x = 0; x < w; x++) {
+				int p0 = (int)(x * slots);
+				int p1 = Math.max(p0 + 1, (int) Math.ceil((x + 1) * slots));
+				int n = density.count(p0, p1);
+				if (n > 0) {
+					float f = Math.min(1f, (float) n / (float)(p1 - p0));
+					fillBrush.setAlpha(MinAlpha + (int)((255 - MinAlpha) * f));
+					canvas.drawRect(x, y0, x + 1, y1, fillBrush);
+				}
+			}
+		}
+		fillBrush.setAlpha(alpha);
+	}
+
+	/**
+	 * move the composer to the touched point
+	 */
+	public boolean onTouchEvent(MotionEvent e) {
+		switch(e.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_MOVE:
+			if (composer != null) {
+				float b = beats * Math.max(0, e.getX()) / getWidth();
+				float time = 60f * b / (float) ScoreActivity.common.getScore().getTempo();
+				composer.goTo(time);
+			}
+			break;
+		default:
+			return super.onTouchEvent(e);
+		}
+		return true;
+	}
+
+	// events handled below
+	static final int[] Events = {
+		Notifier.NewScore, Notifier.ScoreChange, Notifier.ScoreProgress,
+		Notifier.ScoreReady
+	};
+
+	@Override
+	public void handleMessage(Message msg) {
+		switch(msg.what) {
+		case Notifier.NewScore:
+		case Notifier.ScoreChange:
+		case Notifier.ScoreProgress:
+		case Notifier.ScoreReady:
+			refresh();
+			break;
+		}
+	}
+}
@@ -337,6 +337,12 @@ public class NoteChooserView extends View implements
 		postInvalidate();
 	}
 	
+	// events handled below
+	static final int[] Events = {
+		Notifier.NewScore, Notifier.ScoreReady, Notifier.CursorChange,
+		Notifier.ScoreChange
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
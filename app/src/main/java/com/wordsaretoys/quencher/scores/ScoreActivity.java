@@ -12,17 +12,20 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
 import com.wordsaretoys.quencher.R;
 import com.wordsaretoys.quencher.audio.Engine;
 import com.wordsaretoys.quencher.audio.Mp4;
+import com.wordsaretoys.quencher.audio.Wav;
 import com.wordsaretoys.quencher.common.Notifier;
 import com.wordsaretoys.quencher.common.Notifier.NotificationListener;
 import com.wordsaretoys.quencher.common.Popup;
 import com.wordsaretoys.quencher.common.Popup.DeferredDialog;
 import com.wordsaretoys.quencher.common.QuencherApp;
 import com.wordsaretoys.quencher.common.SettingsActivity;
+import com.wordsaretoys.quencher.common.StartupTrace;
 import com.wordsaretoys.quencher.common.Storage;
 import com.wordsaretoys.quencher.data.Note;
 import com.wordsaretoys.quencher.data.Scale;
@@ -54,6 +57,9 @@ public class ScoreActivity extends Activity implements NotificationListener {
 	// composer view
 	ComposerView composerView;
 	
+	// score overview strip
+	MinimapView minimapView;
+	
 	// action mode for note selection
 	ActionMode actionMode;
 	
@@ -93,18 +99,35 @@ public class ScoreActivity extends Activity implements NotificationListener {
 
 	    trackFragment = (TrackFragment) getFragmentManager().findFragmentById(R.id.trackFragment);
 		composerView = (ComposerView) view.findViewById(R.id.composerView);
+		minimapView = (MinimapView) view.findViewById(R.id.minimapView);
+		composerView.setMinimap(minimapView);
+		minimapView.setComposer(composerView);
 
 		if (savedInstanceState != null) {
 			composerView.loadState(savedInstanceState);
 		}
 		actionListener = new ActionModeListener();
+		
+		// report startup time once the first frame is ready
+		final ViewTreeObserver observer = view.getViewTreeObserver();
+		observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			@Override
+			public boolean onPreDraw() {
+				if (observer.isAlive()) {
+					observer.removeOnPreDrawListener(this);
+				}
+				StartupTrace.INSTANCE.finish();
+				return true;
+			}
+		});
 	}
 
 	@Override
 	public void onResume() {
 		super.onResume();
-		Notifier.INSTANCE.register(composerView);
-	    Notifier.INSTANCE.register(this);
+		Notifier.INSTANCE.register(composerView, ComposerView.Events);
+		Notifier.INSTANCE.register(minimapView, MinimapView.Events);
+	    Notifier.INSTANCE.register(this, Events);
 
 	    // hide any restored deferred dialogs
 	    // until they can be properly refreshed
@@ -123,6 +146,7 @@ public class ScoreActivity extends Activity implements NotificationListener {
 		super.onPause();
 		Notifier.INSTANCE.unregister(this);
 		Notifier.INSTANCE.unregister(composerView);
+		Notifier.INSTANCE.unregister(minimapView);
 	}
 	
 	@Override
@@ -163,8 +187,13 @@ public class ScoreActivity extends Activity implements NotificationListener {
 			boolean mediaMuxerSupport = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
 	
 			menu.findItem(R.id.paste).setVisible(canPaste);
+			// playback, export, and copying need the whole score in memory
+			boolean loaded = !common.isStreaming();
+			menu.findItem(R.id.play).setVisible(loaded);
+			menu.findItem(R.id.saveAs).setVisible(loaded);
 			menu.findItem(R.id.delete).setVisible(!isWorkspace);
-			menu.findItem(R.id.makeMP4).setVisible(!isWorkspace && mediaMuxerSupport);
+			menu.findItem(R.id.makeMP4).setVisible(!isWorkspace && mediaMuxerSupport && loaded);
+			menu.findItem(R.id.makeWav).setVisible(!isWorkspace && loaded);
 			
 			menu.findItem(R.id.stressTest).setVisible(QuencherApp.DEVELOPER_MODE);
 		}
@@ -254,6 +283,10 @@ public class ScoreActivity extends Activity implements NotificationListener {
 			makeMP4();
 			break;
 			
+		case R.id.makeWav:
+			makeWav();
+			break;
+			
 		case R.id.settings:
 			launchSettingsFragment();
 			break;
@@ -309,8 +342,8 @@ public class ScoreActivity extends Activity implements NotificationListener {
 			break;
 			
 		case Settings:
-			// restart audio engine to pick up new audio/synth settings
-			Engine.INSTANCE.restart();
+			// swap new audio/synth settings into the running engine
+			Engine.INSTANCE.reconfigure();
 			break;
 		}
 	}
@@ -373,6 +406,13 @@ public class ScoreActivity extends Activity implements NotificationListener {
 		new Mp4(this).create(common.getScore());
 	}
 	
+	/**
+	 * export the score to a float wave file
+	 */
+	private void makeWav() {
+		new Wav(this).create(common.getScore());
+	}
+	
 	/**
 	 * launch the settings fragment
 	 */
@@ -467,20 +507,34 @@ public class ScoreActivity extends Activity implements NotificationListener {
 			int start = common.getSelectionStart();
 			int end = common.getSelectionEnd();
 			
-			for (int i = start; i <= end; i++) {
-				Note note = track.getNote(i);
-				if (note != null) {
-					int pitch = note.getPitchNumber() + offset;
-					if (pitch >= 0 && pitch <= scale.getCount()) {
-						track.setNote(i, pitch);
+			// ending the edit refreshes the composer view
+			track.beginEdit();
+			try {
+				for (int i = start; i <= end; i++) {
+					Note note = track.getNote(i);
+					if (note != null) {
+						int pitch = note.getPitchNumber() + offset;
+						if (pitch >= 0 && pitch <= scale.getCount()) {
+							track.setNote(i, pitch);
+						}
 					}
 				}
+			} finally {
+				track.endEdit();
 			}
-			// insure composer view is refreshed
-			Notifier.INSTANCE.send(Notifier.ScoreChange);
 		}
 	}
 	
+	// events handled below
+	static final int[] Events = {
+		Notifier.ScoreReady, Notifier.NewScore, Notifier.AudioPlaying,
+		Notifier.AudioStopped, Notifier.SettingChange, Notifier.ScoreChange,
+		Notifier.SelectionChange, Notifier.SetCursor,
+		Notifier.StorageUpgrading, Notifier.StorageSaveFailed,
+		Notifier.StorageDeleteFailed, Notifier.AudioInitFailed,
+		Notifier.Mp4WriteFailed, Notifier.WavWriteFailed
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -530,10 +584,18 @@ public class ScoreActivity extends Activity implements NotificationListener {
 			Notifier.INSTANCE.send(Notifier.CursorChange);
 			break;
 
+		case Notifier.StorageUpgrading:
+			// arg1 = completed steps, arg2 = total steps
+			if (msg.arg1 == 0) {
+				Toast.makeText(this, R.string.storageUpgrading, Toast.LENGTH_SHORT).show();
+			}
+			break;
+			
 		case Notifier.StorageSaveFailed:
 		case Notifier.StorageDeleteFailed:
 		case Notifier.AudioInitFailed:
 		case Notifier.Mp4WriteFailed:
+		case Notifier.WavWriteFailed:
 			Popup.createWarning(msg)
 				.show(getFragmentManager(), Popup.Deferred);
 			break;
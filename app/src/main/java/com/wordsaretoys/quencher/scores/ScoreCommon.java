@@ -13,6 +13,7 @@ import com.wordsaretoys.quencher.common.Waiter;
 import com.wordsaretoys.quencher.data.Note;
 import com.wordsaretoys.quencher.data.Scale;
 import com.wordsaretoys.quencher.data.Score;
+import com.wordsaretoys.quencher.data.ScoreLoader;
 import com.wordsaretoys.quencher.data.Tone;
 import com.wordsaretoys.quencher.data.Track;
 import com.wordsaretoys.quencher.data.Voice;
@@ -61,6 +62,12 @@ public class ScoreCommon {
 	// UI wait state handler
 	private Waiter waiter;
 	
+	// true while notes outside the first screen are loading
+	private boolean streaming;
+	
+	// beats either side of the cursor loaded before the UI unlocks
+	static final int WindowBeats = 64;
+	
 	/**
 	 * ctor, creates objects
 	 */
@@ -84,11 +91,13 @@ public class ScoreCommon {
 		if (b != null) {
 			Bundle c = b.getBundle("common");
 			
+			// cursor must be known before loading starts
+			trackPos = c.getInt("trackPos", 0);
+			notePos = c.getInt("notePos", 0);
+			
 			long id = c.getLong("workingScore", -1);
 			loadScoreAsync(id, false);
 			
-			trackPos = c.getInt("trackPos", 0);
-			notePos = c.getInt("notePos", 0);
 			beatMarker = c.getInt("beatMarker", 0);
 			selecting = c.getBoolean("selecting", false);
 		
@@ -310,6 +319,8 @@ public class ScoreCommon {
 	public void setScore(Score s) {
 		closeScore();
 		score = s;
+		// already in memory, so nothing left to stream
+		streaming = false;
 		reset();
 	    score.setOnDataChangedListener(dataChangeListener);
 		Storage.INSTANCE.setAutosave(score);
@@ -319,6 +330,9 @@ public class ScoreCommon {
 	 * loads a score from the database (or creates one)
 	 * in a worker thread, preventing UI thread blocking
 	 * 
+	 * the UI unlocks once the tracks and the notes around
+	 * the cursor are in; the rest stream in behind them
+	 * 
 	 * @param id database id of score, or -1 to create a new score
 	 * @param reset true if editing parameters should be reset to zero
 	 */
@@ -329,15 +343,31 @@ public class ScoreCommon {
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
+				ScoreLoader loader = null;
+				Score loaded = null;
 				if (id != -1) {
-					score = Score.fromId(id);
+					loader = new ScoreLoader(id);
+					loaded = loader.readHeaders(false);
+				}
+				if (loaded != null) {
+					// load the first screen around the cursor
+					float beat = 0;
+					if (!reset) {
+						int t = Math.min(trackPos, loaded.getTrackCount() - 1);
+						beat = notePos * loaded.getTrack(t).getTiming();
+					}
+					loader.readWindow(beat - WindowBeats, beat + WindowBeats);
 				} else {
 					// this may block if default scale/voice
 					// haven't been loaded yet, so it's here
-					score = Score.createNew();
+					loaded = Score.createNew();
+					loader = null;
 				}
+				score = loaded;
+				final Score current = loaded;
 				// if we're still attached to a running activity
 				if (ScoreCommon.this == ScoreActivity.common) {
+					streaming = (loader != null);
 				    score.setOnDataChangedListener(dataChangeListener);
 					Storage.INSTANCE.setAutosave(score);
 					// notify the activity it can refresh itself
@@ -350,6 +380,30 @@ public class ScoreCommon {
 					}
 					// reset loading states
 					loadingId = -1;
+					// stream in the remaining notes
+					if (loader != null) {
+						loader.readRemainder(new ScoreLoader.Publisher() {
+							@Override
+							public void publish(final Runnable update, final boolean last) {
+								((Activity) context).runOnUiThread(new Runnable() {
+									@Override
+									public void run() {
+										update.run();
+										// a newer load may have replaced this one
+										if (score != current) {
+											return;
+										}
+										if (last) {
+											streaming = false;
+											Notifier.INSTANCE.send(Notifier.ScoreChange);
+										} else {
+											Notifier.INSTANCE.send(Notifier.ScoreProgress);
+										}
+									}
+								});
+							}
+						});
+					}
 				}
 			}
 		}).start();
@@ -495,20 +549,26 @@ public class ScoreCommon {
 	public void copyToClipboard(boolean cut) {
 		int count = selectionEnd - selectionStart + 1;
 		clipboard = new int[count];
-		for (int i = 0; i < count; i++) {
-			int ni = i + selectionStart;
-			Note note = getSelectionTrack().getNote(ni);
-			if (note != null) {
-				clipboard[i] = note.getPitchNumber();
-				if (cut) {
-					getSelectionTrack().clearNote(ni);
+		Track track = getSelectionTrack();
+		track.beginEdit();
+		try {
+			for (int i = 0; i < count; i++) {
+				int ni = i + selectionStart;
+				Note note = track.getNote(ni);
+				if (note != null) {
+					clipboard[i] = note.getPitchNumber();
+					if (cut) {
+						track.clearNote(ni);
+					}
+				} else {
+					clipboard[i] = -1;
 				}
-			} else {
-				clipboard[i] = -1;
 			}
+		} finally {
+			track.endEdit();
 		}
 		// make note of the pitch count for later
-		clipboardPitchCount = getSelectionTrack().getScale().getCount();
+		clipboardPitchCount = track.getScale().getCount();
 	}
 	
 	/**
@@ -536,14 +596,8 @@ public class ScoreCommon {
 		if (track.getScale().getCount() != clipboardPitchCount) {
 			return R.string.scorePasteScaleError;
 		}
-		// copy each note to the new track
-		for (int i = 0; i < clipboard.length; i++) {
-			if (clipboard[i] != -1) {
-				track.setNote(i + notePos, clipboard[i]);
-			} else {
-				track.clearNote(i + notePos);
-			}
-		}
+		// copy the notes to the new track
+		track.setNotes(notePos, clipboard);
 		return 0;
 	}
 
@@ -571,10 +625,11 @@ public class ScoreCommon {
 			track.setVoice(voice);
 			score.addTrack(track);
 			
-			for (int nt = 0; nt < 5000; nt++) {
-				int p = (int)(scale.getCount() * Math.random());
-				track.setNote(nt, p);
+			int[] pitches = new int[5000];
+			for (int nt = 0; nt < pitches.length; nt++) {
+				pitches[nt] = (int)(scale.getCount() * Math.random());
 			}
+			track.setNotes(0, pitches);
 		}
 		setScore(score);
 	}
@@ -608,6 +663,14 @@ public class ScoreCommon {
 		return loadingId != -1;
 	}
 	
+	/**
+	 * get note streaming state
+	 * @return true if notes are still loading behind the UI
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
 	/**
 	 * get waiter object
 	 * @return waiter
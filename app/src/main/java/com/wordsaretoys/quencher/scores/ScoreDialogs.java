@@ -594,7 +594,7 @@ public class ScoreDialogs {
 							// and refresh it
 							common.setScore(getScore());
 						}
-					} else {
+					} else if (!common.isStreaming()) {
 						// create new copy of score with given name/desc
 						Score score = new Score();
 						score.copy(common.getScore());
@@ -10,7 +10,6 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 
 import com.wordsaretoys.quencher.R;
-import com.wordsaretoys.quencher.audio.Engine;
 import com.wordsaretoys.quencher.common.Notifier;
 import com.wordsaretoys.quencher.common.Notifier.NotificationListener;
 import com.wordsaretoys.quencher.common.Popup;
@@ -155,11 +154,9 @@ public class TrackFragment extends Fragment implements NotificationListener {
 	@Override
 	public void onResume() {
 		super.onResume();
-		Notifier.INSTANCE.register(this);
-		Notifier.INSTANCE.register(noteChooser);
+		Notifier.INSTANCE.register(this, Events);
+		Notifier.INSTANCE.register(noteChooser, NoteChooserView.Events);
 		updateValues();
-		mainView.setVisibility(
-			Engine.INSTANCE.isPlaying() ? View.GONE : View.VISIBLE);
 	}
 	
 	@Override
@@ -186,6 +183,9 @@ public class TrackFragment extends Fragment implements NotificationListener {
 		boolean last = (track.getIndex() == count - 1);
 		moveUpButton.setVisibility(first ? View.GONE : View.VISIBLE);
 		moveDownButton.setVisibility(last ? View.GONE : View.VISIBLE);
+		// a copy would miss notes still streaming in
+		duplicateButton.setVisibility(
+				ScoreActivity.common.isStreaming() ? View.GONE : View.VISIBLE);
 		
 		audioButton.setImageResource(
 				track.isMuted() ? 
@@ -241,22 +241,21 @@ public class TrackFragment extends Fragment implements NotificationListener {
 	 * duplicate the focused track
 	 */
 	private void duplicateTrack() {
-		if (!Engine.INSTANCE.isPlaying()) {
-			Score score = ScoreActivity.common.getScore();
-			Track track = ScoreActivity.common.getFocusedTrack();
-			int rank = track.getIndex();
-			score.duplicateTrack(rank);
+		if (ScoreActivity.common.isStreaming()) {
+			return;
 		}
+		Score score = ScoreActivity.common.getScore();
+		Track track = ScoreActivity.common.getFocusedTrack();
+		int rank = track.getIndex();
+		score.duplicateTrack(rank);
 	}
 	
 	/**
 	 * delete the focused track
 	 */
 	private void deleteTrack() {
-		if (!Engine.INSTANCE.isPlaying()) {
-			new ScoreDialogs.TrackDeleteDialog().show(
-					getFragmentManager(), Popup.Deferred);
-		}
+		new ScoreDialogs.TrackDeleteDialog().show(
+				getFragmentManager(), Popup.Deferred);
 	}
 	
 	/**
@@ -264,16 +263,14 @@ public class TrackFragment extends Fragment implements NotificationListener {
 	 * @param note index of note
 	 */
 	private void setNote(int note) {
-		if (!Engine.INSTANCE.isPlaying()) {
-			ScoreCommon common = ScoreActivity.common;
-			Track track = common.getFocusedTrack();
-			if (!track.isLocked()) {
-				int notePos = common.getNotePosition();
-				track.setNote(notePos, note);
-				notePos++;
-				common.setNotePosition(notePos);
-				Notifier.INSTANCE.send(Notifier.CursorChange);
-			}
+		ScoreCommon common = ScoreActivity.common;
+		Track track = common.getFocusedTrack();
+		if (!track.isLocked()) {
+			int notePos = common.getNotePosition();
+			track.setNote(notePos, note);
+			notePos++;
+			common.setNotePosition(notePos);
+			Notifier.INSTANCE.send(Notifier.CursorChange);
 		}
 	}
 
@@ -287,17 +284,15 @@ public class TrackFragment extends Fragment implements NotificationListener {
 		noteNextButton.setVisibility(v);
 	}
 	
+	// events handled below
+	static final int[] Events = {
+		Notifier.NewScore, Notifier.ScoreChange, Notifier.CursorChange,
+		Notifier.SetNote
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
-		case Notifier.AudioPlaying:
-			mainView.setVisibility(View.GONE);
-			break;
-		
-		case Notifier.AudioStopped:
-			mainView.setVisibility(View.VISIBLE);
-			break;
-
 		case Notifier.NewScore:
 		case Notifier.ScoreChange:
 		case Notifier.CursorChange:
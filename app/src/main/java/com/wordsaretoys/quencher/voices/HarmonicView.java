@@ -203,6 +203,11 @@ public class HarmonicView extends View implements NotificationListener {
 		stage.setHarmonics(harmonics);
 	}
 	
+	// events handled below
+	static final int[] Events = {
+		Notifier.NewVoice, Notifier.VoiceChange, Notifier.StageCursorChange
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -209,8 +209,8 @@ public class StageFragment extends Fragment implements NotificationListener {
 	@Override
 	public void onResume() {
 		super.onResume();
-		Notifier.INSTANCE.register(this);
-		Notifier.INSTANCE.register(harmonicView);
+		Notifier.INSTANCE.register(this, Events);
+		Notifier.INSTANCE.register(harmonicView, HarmonicView.Events);
 		updateValues();
 		mainView.setVisibility(
 			Engine.INSTANCE.isPlaying() ? View.GONE : View.VISIBLE);
@@ -286,6 +286,12 @@ public class StageFragment extends Fragment implements NotificationListener {
 		return maxValue * (float) bar.getProgress() / (float) bar.getMax();
 	}
 	
+	// events handled below
+	static final int[] Events = {
+		Notifier.AudioPlaying, Notifier.AudioStopped, Notifier.NewVoice,
+		Notifier.VoiceChange, Notifier.StageCursorChange
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -108,7 +108,7 @@ public class VoiceActivity extends Activity implements NotificationListener {
 	@Override
 	public void onResume() {
 		super.onResume();
-	    Notifier.INSTANCE.register(this);
+	    Notifier.INSTANCE.register(this, Events);
 
 	    // hide any restored deferred dialogs
 	    // until they can be properly refreshed
@@ -292,6 +292,15 @@ public class VoiceActivity extends Activity implements NotificationListener {
 			.show(getFragmentManager(), Popup.Deferred);
 	}
 
+	// events handled below
+	static final int[] Events = {
+		Notifier.VoiceReady, Notifier.AudioPlaying, Notifier.AudioStopped,
+		Notifier.NewVoice, Notifier.VoiceChange, Notifier.StageCursorChange,
+		Notifier.StorageSaveFailed, Notifier.StorageDeleteFailed,
+		Notifier.AudioInitFailed, Notifier.Mp4WriteFailed,
+		Notifier.WavWriteFailed
+	};
+	
 	@Override
 	public void handleMessage(Message msg) {
 		switch(msg.what) {
@@ -329,6 +338,7 @@ public class VoiceActivity extends Activity implements NotificationListener {
 		case Notifier.StorageDeleteFailed:
 		case Notifier.AudioInitFailed:
 		case Notifier.Mp4WriteFailed:
+		case Notifier.WavWriteFailed:
 			Popup.createWarning(msg)
 				.show(getFragmentManager(), Popup.Deferred);
 			break;